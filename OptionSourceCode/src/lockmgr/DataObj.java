@@ -8,6 +8,7 @@ public class DataObj extends TrxnObj
     // TrxnObj:: protected int lockType;
     // TrxnObj:: public static final int READ = 0;
     // TrxnObj:: public static final int WRITE = 1;
+    // TrxnObj:: public static final int INCREMENT = 2;
 
     DataObj()
     {
@@ -14,6 +14,13 @@ public class LockManager
 
     public static final int WRITE = 1;
 
+    /**
+     * For changes that commute, such as adding to a counter: compatible with
+     * other INCREMENT locks only. A transaction asking for a second, different
+     * mode on the same item gets a WRITE lock.
+     */
+    public static final int INCREMENT = 2;
+
     /* A lock request is considered deadlocked after 10 sec. */
     private static int DEADLOCK_TIMEOUT = 10000;
 
@@ -45,7 +52,8 @@ public class LockManager
      * @param strData
      *            identifies the data element to be locked; should be non-null.
      * @param lockType
-     *            one of LockManager.READ or LockManager.WRITE
+     *            one of LockManager.READ, LockManager.WRITE or
+     *            LockManager.INCREMENT
      * @return true if operation succeeded; false if not (due to invalid
      *         parameters).
      * 
@@ -66,7 +74,7 @@ public class LockManager
             return false;
         }
 
-        if ((lockType != TrxnObj.READ) && (lockType != TrxnObj.WRITE))
+        if ((lockType != TrxnObj.READ) && (lockType != TrxnObj.WRITE) && (lockType != TrxnObj.INCREMENT))
         {
             return false;
         }
@@ -243,8 +251,11 @@ public class LockManager
                             // request in the queue of requests
                             break;
                         }
-                        else if (waitObj.getLockType() == LockManager.READ)
+                        else
                         {
+                            // a READ or INCREMENT request: wake it up; it
+                            // checks again for conflicts and waits anew if
+                            // some remain.
                             // remove interrupted thread from waitTable.
                             this.waitTable.remove(waitObj);
 
@@ -274,8 +285,9 @@ public class LockManager
     // item and again requests for a read lock), then this is
     // ignored. This is done by throwing RedundantLockRequestException
     // which is handled appropriately by the caller. If the lock
-    // request is a conversion from READ lock to WRITE lock, then
-    // bitset is set.
+    // request is a conversion (READ or INCREMENT lock to WRITE lock,
+    // or one of READ and INCREMENT to the other, which also yields a
+    // WRITE lock), then bitset is set.
     private boolean lockConflict(DataObj dataObj, BitSet bitset) throws DeadlockException,
             RedundantLockRequestException
     {
@@ -283,79 +295,46 @@ public class LockManager
         DataObj dataObj2;
         int size = vect.size();
 
-        // as soon as a lock that conflicts with the current lock
-        // request is found, return true
+        // first find the lock, if any, the transaction already has on
+        // this data item: it decides the mode to check the others against
+        int wanted = dataObj.getLockType();
+        for (int i = 0; i < size; i++)
+        {
+            dataObj2 = (DataObj) vect.elementAt(i);
+            if (dataObj.getXId() != dataObj2.getXId())
+            {
+                continue;
+            }
+            int held = dataObj2.getLockType();
+            if (held == wanted || held == DataObj.WRITE)
+            {
+                // the lock held already covers the request
+                throw new RedundantLockRequestException(dataObj.getXId(), "Redundant lock request");
+            }
+            // READ and INCREMENT together, or either and WRITE: only a
+            // WRITE lock covers both
+            System.out.println("Want " + modeName(wanted) + ", have " + modeName(held) + ", requesting lock upgrade");
+            wanted = DataObj.WRITE;
+            bitset.set(0);
+            break;
+        }
+
+        // as soon as a lock of another transaction that conflicts with
+        // the mode wanted is found, return true
         for (int i = 0; i < size; i++)
         {
             dataObj2 = (DataObj) vect.elementAt(i);
             if (dataObj.getXId() == dataObj2.getXId())
             {
-                // the transaction already has a lock on this data
-                // item which means that it is either relocking it or
-                // is converting the lock
-                if (dataObj.getLockType() == DataObj.READ)
-                {
-                    // since transaction already has a lock (may be
-                    // READ, may be WRITE. we don't care) on this data
-                    // item and it is requesting a READ lock, this
-                    // lock request is redundant.
-                    throw new RedundantLockRequestException(dataObj.getXId(), "Redundant READ lock request");
-                }
-                else if (dataObj.getLockType() == DataObj.WRITE)
-                {
-                    // transaction already has a lock and is requesting a WRITE
-                    // lock
-                    // now there are two cases to analyze here
-                    // (1) transaction already had a READ lock
-                    // (2) transaction already had a WRITE lock
-                    // Seeing the comments at the top of this function might be
-                    // helpful
-                    // *** ADD CODE HERE *** to take care of both these cases
-                    if (dataObj2.getLockType() == DataObj.WRITE)
-                    {
-                        // since the transaction already has a write lock on
-                        // this
-                        // data item, this locm request is redundant
-                        throw new RedundantLockRequestException(dataObj.getXId(), "Redundant WRITE lock request");
-                    }
-                    else
-                    {
-                        // the transaction has a READ lock and has requested a
-                        // WRITE lock,
-                        // so this is a lock conversion request
-                        System.out.println("Want WRITE, have READ, requesting lock upgrade");
-                        bitset.set(0);
-                        // we can't just return false here, because some other
-                        // transaction may also have a READ lock. So we must
-                        // continue iterating through the chain of locks.
-                    }
-                }
+                continue;
             }
-            else
+            int other = dataObj2.getLockType();
+            // READ locks share with READ locks and INCREMENT locks with
+            // INCREMENT locks; anything else conflicts
+            if (wanted == DataObj.WRITE || other != wanted)
             {
-                if (dataObj.getLockType() == DataObj.READ)
-                {
-                    if (dataObj2.getLockType() == DataObj.WRITE)
-                    {
-                        // transaction is requesting a READ lock and some other
-                        // transaction
-                        // already has a WRITE lock on it ==> conflict
-                        System.out.println("Want READ, someone has WRITE");
-                        return true;
-                    }
-                    else
-                    {
-                        // do nothing
-                    }
-                }
-                else if (dataObj.getLockType() == DataObj.WRITE)
-                {
-                    // transaction is requesting a WRITE lock and some other
-                    // transaction has either
-                    // a READ or a WRITE lock on it ==> conflict
-                    System.out.println("Want WRITE, someone has READ or WRITE");
-                    return true;
-                }
+                System.out.println("Want " + modeName(wanted) + ", someone has " + modeName(other));
+                return true;
             }
         }
 
@@ -364,6 +343,11 @@ public class LockManager
 
     }
 
+    private static String modeName(int lockType)
+    {
+        return lockType == READ ? "READ" : lockType == WRITE ? "WRITE" : "INCREMENT";
+    }
+
     private void waitLock(DataObj dataObj) throws DeadlockException
     {
         // Check timestamp or add a new one.
@@ -467,8 +451,14 @@ public class LockManager
 
     private void convertLockTableObj(TrxnObj trxnObj)
     {
+        // the lock held is a READ or an INCREMENT one
         trxnObj.setLockType(TrxnObj.READ);
         TrxnObj trxnObj2 = (TrxnObj) this.lockTable.get(trxnObj);
+        if (trxnObj2 == null)
+        {
+            trxnObj.setLockType(TrxnObj.INCREMENT);
+            trxnObj2 = (TrxnObj) this.lockTable.get(trxnObj);
+        }
         trxnObj2.setLockType(TrxnObj.WRITE);
     }
 }
\ No newline at end of file
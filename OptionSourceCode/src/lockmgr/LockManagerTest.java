@@ -11,6 +11,8 @@ class LockManagerTest
     {
         test1();
         test2();
+        if (!test3())
+            System.exit(1);
     }
 
     static void test1()
@@ -48,6 +50,36 @@ class LockManagerTest
         }
     }
 
+    static boolean test3()
+    {
+        System.out.println("Increment lock test");
+        // 1 and 2 share the INCREMENT lock; 3 reads only once both are done
+        Transaction t1 = new Transaction(1, "il a sl 1000 ua");
+        Transaction t2 = new Transaction(2, "il a sl 2000 ua");
+        Transaction t3 = new Transaction(3, "sl 100 rl a ua");
+        t1.start();
+        t2.start();
+        t3.start();
+        try
+        {
+            t1.join();
+            t2.join();
+            t3.join();
+        }
+        catch (Exception e)
+        {
+        }
+        boolean overlap = t1.locked != -1 && t2.locked != -1 && t1.locked < t2.unlocked && t2.locked < t1.unlocked;
+        boolean waited = t3.locked != -1 && t3.locked >= t1.unlocked && t3.locked >= t2.unlocked;
+        if (!overlap)
+            System.out.println("FAILED: transactions 1 and 2 did not hold the INCREMENT lock together");
+        if (!waited)
+            System.out.println("FAILED: transaction 3 did not wait for 1 and 2 to finish");
+        if (overlap && waited)
+            System.out.println("Increment lock test passed");
+        return overlap && waited;
+    }
+
     static class Transaction extends Thread
     {
 
@@ -55,6 +87,11 @@ class LockManagerTest
 
         StringTokenizer st;
 
+        /** When the last lock was granted and when unlockAll was called, or -1. */
+        volatile long locked = -1;
+
+        volatile long unlocked = -1;
+
         public Transaction(int xid, String ops)
         {
             this.xid = xid;
@@ -73,16 +110,26 @@ class LockManagerTest
                     {
                         String param = st.nextToken();
                         lm.lock(xid, param, LockManager.READ);
+                        locked = System.nanoTime();
                         System.out.println("Transaction " + xid + " got rl(" + param + ")");
                     }
                     else if (opcode.equalsIgnoreCase("wl"))
                     {
                         String param = st.nextToken();
                         lm.lock(xid, param, LockManager.WRITE);
+                        locked = System.nanoTime();
                         System.out.println("Transaction " + xid + " got wl(" + param + ")");
                     }
+                    else if (opcode.equalsIgnoreCase("il"))
+                    {
+                        String param = st.nextToken();
+                        lm.lock(xid, param, LockManager.INCREMENT);
+                        locked = System.nanoTime();
+                        System.out.println("Transaction " + xid + " got il(" + param + ")");
+                    }
                     else if (opcode.equalsIgnoreCase("ua"))
                     {
+                        unlocked = System.nanoTime();
                         lm.unlockAll(xid);
                     }
                     else if (opcode.equalsIgnoreCase("sl"))
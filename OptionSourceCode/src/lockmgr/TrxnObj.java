@@ -6,6 +6,8 @@ public class TrxnObj extends XObj
 
     public static final int WRITE = 1;
 
+    public static final int INCREMENT = 2;
+
     protected String strData = null;
 
     protected int lockType = -1;
@@ -25,7 +27,7 @@ public class TrxnObj extends XObj
         super(xid);
         this.strData = new String(strData);
 
-        if ((lockType == TrxnObj.READ) || (lockType == TrxnObj.WRITE))
+        if ((lockType == TrxnObj.READ) || (lockType == TrxnObj.WRITE) || (lockType == TrxnObj.INCREMENT))
         {
             this.lockType = lockType;
         }
@@ -84,7 +86,7 @@ public class TrxnObj extends XObj
 
     public void setLockType(int lockType)
     {
-        if ((lockType == TrxnObj.READ) || (lockType == TrxnObj.WRITE))
+        if ((lockType == TrxnObj.READ) || (lockType == TrxnObj.WRITE) || (lockType == TrxnObj.INCREMENT))
         {
             this.lockType = lockType;
         }
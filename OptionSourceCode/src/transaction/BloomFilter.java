@@ -0,0 +1,85 @@
+package transaction;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Bloom filter over string keys, used to skip sorted runs that cannot
+ * contain a key.
+ */
+public class BloomFilter
+{
+    protected final static int BITS_PER_KEY = 10;
+
+    protected final static int NUM_HASHES = 3;
+
+    protected long[] bits;
+
+    protected int numBits;
+
+    public BloomFilter(int expectedKeys)
+    {
+        numBits = Math.max(64, expectedKeys * BITS_PER_KEY);
+        bits = new long[(numBits + 63) / 64];
+    }
+
+    protected BloomFilter(int numBits, long[] bits)
+    {
+        this.numBits = numBits;
+        this.bits = bits;
+    }
+
+    public void add(String key)
+    {
+        int h1 = key.hashCode();
+        int h2 = secondHash(key);
+        for (int i = 0; i < NUM_HASHES; i++)
+        {
+            int bit = ((h1 + i * h2) & 0x7fffffff) % numBits;
+            bits[bit >>> 6] |= 1L << (bit & 63);
+        }
+    }
+
+    public boolean mightContain(String key)
+    {
+        int h1 = key.hashCode();
+        int h2 = secondHash(key);
+        for (int i = 0; i < NUM_HASHES; i++)
+        {
+            int bit = ((h1 + i * h2) & 0x7fffffff) % numBits;
+            if ((bits[bit >>> 6] & (1L << (bit & 63))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /** FNV-1a, independent enough from String.hashCode for double hashing. */
+    protected static int secondHash(String key)
+    {
+        int h = 0x811c9dc5;
+        for (int i = 0; i < key.length(); i++)
+        {
+            h ^= key.charAt(i);
+            h *= 0x01000193;
+        }
+        return h | 1;
+    }
+
+    public void writeTo(DataOutput out) throws IOException
+    {
+        out.writeInt(numBits);
+        out.writeInt(bits.length);
+        for (int i = 0; i < bits.length; i++)
+            out.writeLong(bits[i]);
+    }
+
+    public static BloomFilter readFrom(DataInput in) throws IOException
+    {
+        int numBits = in.readInt();
+        long[] bits = new long[in.readInt()];
+        for (int i = 0; i < bits.length; i++)
+            bits[i] = in.readLong();
+        return new BloomFilter(numBits, bits);
+    }
+}
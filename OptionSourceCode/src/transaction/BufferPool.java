@@ -0,0 +1,157 @@
+package transaction;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * Bounded cache of fixed-size file pages with clock (second chance)
+ * replacement.
+ * <p>
+ * Pages are modified in their frame and marked dirty; a dirty page is
+ * written back when it is evicted or when flush() is called. The pool is not
+ * thread safe, callers serialize access to it.
+ */
+public class BufferPool
+{
+    protected static class Frame
+    {
+        int pageNo = -1;
+
+        byte[] data;
+
+        boolean dirty = false;
+
+        boolean referenced = false;
+
+        Frame(int pageSize)
+        {
+            data = new byte[pageSize];
+        }
+    }
+
+    protected FileChannel channel;
+
+    protected int pageSize;
+
+    protected Frame[] frames;
+
+    /** pageNo -> frame holding it */
+    protected HashMap resident = new HashMap();
+
+    protected int hand = 0;
+
+    public BufferPool(FileChannel channel, int pageSize, int capacity)
+    {
+        this.channel = channel;
+        this.pageSize = pageSize;
+        frames = new Frame[capacity];
+        for (int i = 0; i < capacity; i++)
+            frames[i] = new Frame(pageSize);
+    }
+
+    /**
+     * Returns the contents of a page, reading it from disk if it is not
+     * resident. The array stays valid until the next call to getPage.
+     */
+    public byte[] getPage(int pageNo) throws IOException
+    {
+        Frame frame = (Frame) resident.get(new Integer(pageNo));
+        if (frame == null)
+        {
+            frame = victim();
+            ByteBuffer buf = ByteBuffer.wrap(frame.data);
+            long pos = (long) pageNo * pageSize;
+            while (buf.hasRemaining())
+            {
+                if (channel.read(buf, pos + buf.position()) < 0)
+                    break;
+            }
+            while (buf.hasRemaining())
+                buf.put((byte) 0);
+            frame.pageNo = pageNo;
+            frame.dirty = false;
+            resident.put(new Integer(pageNo), frame);
+        }
+        frame.referenced = true;
+        return frame.data;
+    }
+
+    /**
+     * Returns a zero-filled frame for a page that does not exist on disk yet.
+     */
+    public byte[] newPage(int pageNo) throws IOException
+    {
+        Frame frame = victim();
+        for (int i = 0; i < pageSize; i++)
+            frame.data[i] = 0;
+        frame.pageNo = pageNo;
+        frame.dirty = true;
+        frame.referenced = true;
+        resident.put(new Integer(pageNo), frame);
+        return frame.data;
+    }
+
+    public void markDirty(int pageNo)
+    {
+        Frame frame = (Frame) resident.get(new Integer(pageNo));
+        if (frame != null)
+            frame.dirty = true;
+    }
+
+    /**
+     * Writes every dirty page back and forces the file to disk.
+     */
+    public void flush() throws IOException
+    {
+        for (int i = 0; i < frames.length; i++)
+        {
+            if (frames[i].dirty)
+                writeBack(frames[i]);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Writes one page back if it is dirty and forces the file to disk, so
+     * that the page is durable before any page written after it.
+     */
+    public void flushPage(int pageNo) throws IOException
+    {
+        Frame frame = (Frame) resident.get(new Integer(pageNo));
+        if (frame != null && frame.dirty)
+            writeBack(frame);
+        channel.force(false);
+    }
+
+    protected Frame victim() throws IOException
+    {
+        while (true)
+        {
+            Frame frame = frames[hand];
+            hand = (hand + 1) % frames.length;
+            if (frame.pageNo == -1)
+                return frame;
+            if (frame.referenced)
+            {
+                frame.referenced = false;
+                continue;
+            }
+            if (frame.dirty)
+                writeBack(frame);
+            resident.remove(new Integer(frame.pageNo));
+            frame.pageNo = -1;
+            return frame;
+        }
+    }
+
+    protected void writeBack(Frame frame) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.wrap(frame.data);
+        long pos = (long) frame.pageNo * pageSize;
+        while (buf.hasRemaining())
+            channel.write(buf, pos + buf.position());
+        frame.dirty = false;
+    }
+}
@@ -3,7 +3,9 @@ package transaction;
 /**
  * Car table row.
  */
-public class Car implements ResourceItem {
+public class Car implements InventoryItem {
+    private static final long serialVersionUID = 7198192868091166636L;
+
     public static final String INDEX_LOCATION = "location";
 
     private String location;
@@ -34,6 +36,10 @@ public class Car implements ResourceItem {
         throw new InvalidIndexException(indexName);
     }
 
+    public String[] getIndexNames() {
+        return new String[] { INDEX_LOCATION };
+    }
+
     public Object getKey() {
         return location;
     }
@@ -103,6 +103,41 @@ public class Client {
             require(wc.commit(xid4), "commit failed");
             System.out.println("CASE 4 PASSED");
 
+            // Case 7: snapshot reads don't wait for writers
+            printCaseHeader(7, "snapshot read during update");
+            int setup7 = wc.start();
+            require(wc.addFlight(setup7, "SN700", 50, 300), "addFlight failed");
+            require(wc.commit(setup7), "commit failed");
+            int snap = wc.startSnapshot();
+            int xid7 = wc.start();
+            require(wc.addFlight(xid7, "SN700", 10, 888), "addFlight failed");
+            require(wc.queryFlight(snap, "SN700") == 50, "snapshot saw uncommitted seats");
+            require(wc.commit(xid7), "commit failed");
+            require(wc.queryFlightPrice(snap, "SN700") == 300, "snapshot saw a later commit");
+            try {
+                wc.addFlight(snap, "SN700", 1, 1);
+                throw new RuntimeException("update in snapshot should have failed");
+            } catch (InvalidTransactionException e) {
+            }
+            require(wc.commit(snap), "snapshot commit failed");
+            System.out.println("CASE 7 PASSED");
+
+            // Case 8: read-only transaction
+            printCaseHeader(8, "read-only transaction");
+            int setup8 = wc.start();
+            require(wc.newCustomer(setup8, "Carol"), "newCustomer Carol failed");
+            require(wc.addFlight(setup8, "RO800", 3, 200), "addFlight failed");
+            require(wc.commit(setup8), "commit failed");
+            int ro = wc.startReadOnly();
+            require(wc.queryFlight(ro, "RO800") == 3, "queryFlight mismatch");
+            try {
+                wc.reserveFlight(ro, "Carol", "RO800");
+                throw new RuntimeException("update in read-only transaction should have failed");
+            } catch (InvalidTransactionException e) {
+            }
+            require(wc.commit(ro), "read-only commit failed");
+            System.out.println("CASE 8 PASSED");
+
             if (hasArg(args, "case5")) {
                 // Case 5: 2PC failure before prepare (RMFlights dies)
                 printCaseHeader(5, "2PC failure before prepare (RMFlights)");
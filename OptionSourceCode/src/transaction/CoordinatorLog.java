@@ -0,0 +1,440 @@
+package transaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The Transaction Manager's log of commit decisions, for the presumed-abort
+ * protocol.
+ * <p>
+ * Only commits are logged: a COMMIT record (xid, commit timestamp and the
+ * names of the participants that must apply it) is forced before phase two
+ * starts, and an unforced END record is appended once every participant has
+ * acknowledged. Aborts and read-only transactions write nothing: an xid that
+ * has no COMMIT record is aborted. Concurrent committers share their forced
+ * writes (group commit): one sync covers every record appended before it.
+ */
+public class CoordinatorLog
+{
+    protected final static byte COMMIT = 1;
+
+    protected final static byte END = 2;
+
+    /** Highest xid and commit timestamp handed out, kept across compactions. */
+    protected final static byte HIGH_WATER = 3;
+
+    /** Minimum number of records before a compaction is considered. */
+    protected final static int COMPACT_THRESHOLD = 1024;
+
+    /** A commit decision whose participants have not all acknowledged it. */
+    public static class Decision
+    {
+        public final int xid;
+
+        public final long commitTs;
+
+        /** Names of the participants that still have to apply the commit. */
+        public final Set pending;
+
+        Decision(int xid, long commitTs, Set pending)
+        {
+            this.xid = xid;
+            this.commitTs = commitTs;
+            this.pending = pending;
+        }
+    }
+
+    protected File file;
+
+    protected FileOutputStream out = null;
+
+    protected int records = 0;
+
+    /** Number of records appended, and number known to be on disk. */
+    protected long appended = 0;
+
+    protected long forced = 0;
+
+    protected final Object forceLock = new Object();
+
+    protected int maxXid = 0;
+
+    protected long maxCommitTs = 0;
+
+    /**
+     * xid -> Decision for every COMMIT record appended and not yet ended.
+     * compact rewrites these, so a commit appended while the caller's own
+     * view of the live decisions is being read cannot be dropped.
+     */
+    protected Map live = new HashMap();
+
+    public CoordinatorLog(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Replays the log.
+     *
+     * @return xid -> Decision for the commits that have no END record. A
+     *         torn record at the tail is cut off, so that the records
+     *         appended next are read back whole.
+     */
+    public synchronized Map replay()
+    {
+        Map decided = new HashMap();
+        records = 0;
+        if (!file.exists())
+            return decided;
+        byte[] data;
+        try
+        {
+            data = readFully(file);
+        }
+        catch (IOException e)
+        {
+            return decided;
+        }
+        ByteArrayInputStream bin = new ByteArrayInputStream(data);
+        DataInputStream in = new DataInputStream(bin);
+        int valid = 0;
+        try
+        {
+            while (true)
+            {
+                byte type = in.readByte();
+                int xid = in.readInt();
+                if (type == COMMIT)
+                {
+                    long ts = in.readLong();
+                    int n = in.readShort();
+                    Set names = new HashSet();
+                    for (int i = 0; i < n; i++)
+                        names.add(in.readUTF());
+                    decided.put(new Integer(xid), new Decision(xid, ts, names));
+                    maxCommitTs = Math.max(maxCommitTs, ts);
+                }
+                else if (type == END)
+                {
+                    decided.remove(new Integer(xid));
+                }
+                else if (type == HIGH_WATER)
+                {
+                    maxCommitTs = Math.max(maxCommitTs, in.readLong());
+                }
+                else
+                {
+                    break;
+                }
+                maxXid = Math.max(maxXid, xid);
+                records++;
+                valid = data.length - bin.available();
+            }
+        }
+        catch (EOFException e)
+        {
+        }
+        catch (IOException e)
+        {
+        }
+        if (valid < data.length)
+            truncate(valid);
+        live = new HashMap(decided);
+        return decided;
+    }
+
+    protected static byte[] readFully(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    protected void truncate(long length)
+    {
+        close();
+        RandomAccessFile raf = null;
+        try
+        {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(length);
+            raf.getFD().sync();
+        }
+        catch (IOException e)
+        {
+            System.err.println("Can't truncate " + file + ": " + e.getMessage());
+        }
+        finally
+        {
+            try
+            {
+                if (raf != null)
+                    raf.close();
+            }
+            catch (IOException e1)
+            {
+            }
+        }
+    }
+
+    /** Highest xid found by replay. */
+    public synchronized int getMaxXid()
+    {
+        return maxXid;
+    }
+
+    /** Highest commit timestamp found by replay. */
+    public synchronized long getMaxCommitTs()
+    {
+        return maxCommitTs;
+    }
+
+    /**
+     * Appends a COMMIT record and waits until it is on disk.
+     *
+     * @return the live Decision, which compact keeps until end(xid), or
+     *         null if the record could not be made durable; the transaction
+     *         must then be aborted.
+     */
+    public Decision commit(int xid, long commitTs, Set participants)
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(64);
+        DataOutputStream dout = new DataOutputStream(bout);
+        try
+        {
+            dout.writeByte(COMMIT);
+            dout.writeInt(xid);
+            dout.writeLong(commitTs);
+            dout.writeShort(participants.size());
+            for (Iterator iter = participants.iterator(); iter.hasNext();)
+                dout.writeUTF((String) iter.next());
+            dout.flush();
+        }
+        catch (IOException e)
+        {
+            // cannot happen on a ByteArrayOutputStream
+            throw new RuntimeException(e);
+        }
+        Decision d = new Decision(xid, commitTs, participants);
+        long seq;
+        synchronized (this)
+        {
+            if (!append(bout.toByteArray()))
+                return null;
+            seq = appended;
+            maxXid = Math.max(maxXid, xid);
+            maxCommitTs = Math.max(maxCommitTs, commitTs);
+            live.put(new Integer(xid), d);
+        }
+        if (!force(seq))
+        {
+            synchronized (this)
+            {
+                live.remove(new Integer(xid));
+            }
+            return null;
+        }
+        return d;
+    }
+
+    /**
+     * Records, durably, that xids up to maxXid may have been handed out, so
+     * that none of them is handed out again after a restart.
+     */
+    public boolean reserveXids(int maxXid)
+    {
+        byte[] buf = new byte[13];
+        long seq;
+        synchronized (this)
+        {
+            encodeHighWater(buf, maxXid, maxCommitTs);
+            if (!append(buf))
+                return false;
+            seq = appended;
+            this.maxXid = Math.max(this.maxXid, maxXid);
+        }
+        return force(seq);
+    }
+
+    /**
+     * Records that every participant has applied xid's commit. Not forced:
+     * if it is lost, recovery asks the participants again.
+     */
+    public synchronized boolean end(int xid)
+    {
+        live.remove(new Integer(xid));
+        byte[] buf = new byte[5];
+        buf[0] = END;
+        buf[1] = (byte) (xid >>> 24);
+        buf[2] = (byte) (xid >>> 16);
+        buf[3] = (byte) (xid >>> 8);
+        buf[4] = (byte) xid;
+        return append(buf);
+    }
+
+    /**
+     * Waits until the record numbered seq is on disk. The first waiter
+     * syncs on behalf of everyone who appended before it started; the
+     * others find their records already covered.
+     */
+    protected boolean force(long seq)
+    {
+        synchronized (forceLock)
+        {
+            if (forced >= seq)
+                return true;
+            long upto;
+            FileOutputStream fout;
+            synchronized (this)
+            {
+                upto = appended;
+                fout = out;
+            }
+            if (fout == null)
+                return false;
+            try
+            {
+                fout.getFD().sync();
+            }
+            catch (IOException e)
+            {
+                return false;
+            }
+            forced = upto;
+            return true;
+        }
+    }
+
+    /**
+     * @return true once the dead records outnumber the live ones by enough
+     *         to make rewriting the file worthwhile.
+     */
+    public synchronized boolean needsCompaction(int liveCount)
+    {
+        return records > COMPACT_THRESHOLD && records > 2 * liveCount;
+    }
+
+    /**
+     * Rewrites the log so that it holds the high-water mark and one COMMIT
+     * record per live decision, with the participants it still waits for.
+     * The new file is written aside and renamed over the old one.
+     */
+    public boolean compact()
+    {
+        synchronized (forceLock)
+        {
+            synchronized (this)
+            {
+                File tmp = new File(file.getPath() + ".tmp");
+                FileOutputStream tout = null;
+                int n = 0;
+                try
+                {
+                    tout = new FileOutputStream(tmp);
+                    DataOutputStream dout = new DataOutputStream(tout);
+                    dout.writeByte(HIGH_WATER);
+                    dout.writeInt(maxXid);
+                    dout.writeLong(maxCommitTs);
+                    n++;
+                    for (Iterator iter = live.values().iterator(); iter.hasNext();)
+                    {
+                        Decision d = (Decision) iter.next();
+                        dout.writeByte(COMMIT);
+                        dout.writeInt(d.xid);
+                        dout.writeLong(d.commitTs);
+                        dout.writeShort(d.pending.size());
+                        for (Iterator it = d.pending.iterator(); it.hasNext();)
+                            dout.writeUTF((String) it.next());
+                        n++;
+                    }
+                    dout.flush();
+                    tout.getFD().sync();
+                }
+                catch (IOException e)
+                {
+                    return false;
+                }
+                finally
+                {
+                    try
+                    {
+                        if (tout != null)
+                            tout.close();
+                    }
+                    catch (IOException e1)
+                    {
+                    }
+                }
+                close();
+                if (!tmp.renameTo(file))
+                    return false;
+                records = n;
+                forced = appended;
+                return true;
+            }
+        }
+    }
+
+    protected static void encodeHighWater(byte[] buf, int xid, long ts)
+    {
+        buf[0] = HIGH_WATER;
+        for (int i = 0; i < 4; i++)
+            buf[1 + i] = (byte) (xid >>> (24 - 8 * i));
+        for (int i = 0; i < 8; i++)
+            buf[5 + i] = (byte) (ts >>> (56 - 8 * i));
+    }
+
+    public synchronized void close()
+    {
+        try
+        {
+            if (out != null)
+                out.close();
+        }
+        catch (IOException e)
+        {
+        }
+        out = null;
+    }
+
+    protected boolean append(byte[] buf)
+    {
+        try
+        {
+            if (out == null)
+            {
+                file.getParentFile().mkdirs();
+                out = new FileOutputStream(file, true);
+            }
+            out.write(buf);
+            records++;
+            appended++;
+            return true;
+        }
+        catch (IOException e)
+        {
+            close();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package transaction;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checks that a CoordinatorLog replays exactly the commit decisions that
+ * were not ended, with the participants still pending, that a torn record
+ * at its end is cut off so that later records are replayed, and that
+ * compaction keeps the live decisions and the high-water marks. Exits with
+ * status 1 if a check fails.
+ */
+class CoordinatorLogTest
+{
+    static File dir = new File(System.getProperty("java.io.tmpdir"), "CoordinatorLogTest");
+
+    static int failures = 0;
+
+    public static void main(String[] args)
+    {
+        test1();
+        test2();
+        test3();
+        if (failures > 0)
+        {
+            System.out.println(failures + " check(s) FAILED");
+            System.exit(1);
+        }
+        System.out.println("ALL CHECKS PASSED");
+    }
+
+    static void check(boolean ok, String what)
+    {
+        System.out.println((ok ? "ok     " : "FAILED ") + what);
+        if (!ok)
+            failures++;
+    }
+
+    static File freshFile(String name)
+    {
+        dir.mkdirs();
+        File file = new File(dir, name);
+        file.delete();
+        return file;
+    }
+
+    static Set names(String a, String b)
+    {
+        Set names = new HashSet();
+        names.add(a);
+        if (b != null)
+            names.add(b);
+        return names;
+    }
+
+    static CoordinatorLog.Decision decision(Map decided, int xid)
+    {
+        return (CoordinatorLog.Decision) decided.get(new Integer(xid));
+    }
+
+    static void test1()
+    {
+        System.out.println("Replay test");
+        File file = freshFile("replay.log");
+        CoordinatorLog log = new CoordinatorLog(file);
+        log.replay();
+        check(log.commit(1, 101, names("RMFlights", "RMCars")) != null, "commit 1 logged");
+        check(log.commit(2, 102, names("RMFlights", null)) != null, "commit 2 logged");
+        check(log.end(1), "commit 1 ended");
+        check(log.reserveXids(50), "xids up to 50 reserved");
+        log.close();
+
+        log = new CoordinatorLog(file);
+        Map decided = log.replay();
+        check(decided.size() == 1 && decision(decided, 1) == null, "an ended commit is not replayed");
+        CoordinatorLog.Decision d = decision(decided, 2);
+        check(d != null && d.commitTs == 102 && d.pending.equals(names("RMFlights", null)),
+                "an open commit is replayed with its timestamp and participants");
+        check(log.getMaxXid() == 50 && log.getMaxCommitTs() == 102, "the high-water marks are replayed");
+        log.close();
+    }
+
+    static void test2()
+    {
+        System.out.println("Torn tail test");
+        File file = freshFile("torn.log");
+        CoordinatorLog log = new CoordinatorLog(file);
+        log.replay();
+        log.commit(1, 101, names("RMRooms", null));
+        log.close();
+        try
+        {
+            // the first bytes of a COMMIT record
+            FileOutputStream out = new FileOutputStream(file, true);
+            out.write(new byte[] { CoordinatorLog.COMMIT, 0, 0, 0, 2, 0 });
+            out.close();
+        }
+        catch (Exception e)
+        {
+            check(false, "can't append to " + file + ": " + e);
+            return;
+        }
+
+        log = new CoordinatorLog(file);
+        Map decided = log.replay();
+        check(decided.size() == 1 && decision(decided, 1) != null, "the records before the torn one are replayed");
+        log.commit(3, 103, names("RMRooms", null));
+        log.close();
+        log = new CoordinatorLog(file);
+        decided = log.replay();
+        check(decision(decided, 3) != null, "a commit logged after the torn record is replayed");
+        check(decided.size() == 2, "and nothing else appears");
+        log.close();
+    }
+
+    static void test3()
+    {
+        System.out.println("Compaction test");
+        File file = freshFile("compact.log");
+        CoordinatorLog log = new CoordinatorLog(file);
+        log.replay();
+        int n = CoordinatorLog.COMPACT_THRESHOLD;
+        CoordinatorLog.Decision open = null;
+        for (int xid = 1; xid <= n; xid++)
+        {
+            CoordinatorLog.Decision d = log.commit(xid, 1000 + xid, names("RMFlights", "RMCustomers"));
+            if (xid == 10)
+                open = d;
+            else
+                log.end(xid);
+        }
+        // RMFlights has acknowledged xid 10, RMCustomers not yet
+        open.pending.remove("RMFlights");
+        check(log.needsCompaction(1), "a log of ended commits needs compaction");
+        long before = file.length();
+        check(log.compact(), "compact");
+        check(file.length() < before, "compaction shrinks the log");
+        log.commit(n + 1, 1000 + n + 1, names("RMCars", null));
+        log.close();
+
+        log = new CoordinatorLog(file);
+        Map decided = log.replay();
+        CoordinatorLog.Decision d = decision(decided, 10);
+        check(d != null && d.commitTs == 1010 && d.pending.equals(names("RMCustomers", null)),
+                "the open commit keeps its timestamp and the participants still pending");
+        check(decision(decided, n + 1) != null, "a commit logged after compaction is replayed");
+        check(decided.size() == 2, "the ended commits are gone");
+        check(log.getMaxXid() == n + 1 && log.getMaxCommitTs() == 1000 + n + 1, "the high-water marks survive");
+        check(!log.needsCompaction(decided.size()), "the compacted log does not need compaction");
+        log.close();
+    }
+}
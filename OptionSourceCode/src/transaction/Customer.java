@@ -4,6 +4,8 @@ package transaction;
  * Customer table row.
  */
 public class Customer implements ResourceItem {
+    private static final long serialVersionUID = 2837413838181350716L;
+
     public static final String INDEX_CUSTNAME = "custName";
 
     private String custName;
@@ -28,6 +30,10 @@ public class Customer implements ResourceItem {
         throw new InvalidIndexException(indexName);
     }
 
+    public String[] getIndexNames() {
+        return new String[] { INDEX_CUSTNAME };
+    }
+
     public Object getKey() {
         return custName;
     }
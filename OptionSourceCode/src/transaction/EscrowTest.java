@@ -0,0 +1,136 @@
+package transaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Iterator;
+import java.util.Map;
+
+import lockmgr.LockManager;
+
+/**
+ * Checks escrow bookings in RMTable: concurrent transactions can never take
+ * more units than a row has, aborted and committed bookings release what
+ * they hold, a commit redone after a crash applies the change once, and
+ * bookings recovered from disk still count. Exits with status 1 if a check
+ * fails.
+ */
+class EscrowTest
+{
+    static LockManager lm = new LockManager();
+
+    static int failures = 0;
+
+    static int nextXid = 1;
+
+    public static void main(String[] args) throws Exception
+    {
+        test1();
+        test2();
+        test3();
+        if (failures > 0)
+        {
+            System.out.println(failures + " check(s) FAILED");
+            System.exit(1);
+        }
+        System.out.println("ALL CHECKS PASSED");
+    }
+
+    static void check(boolean ok, String what)
+    {
+        System.out.println((ok ? "ok     " : "FAILED ") + what);
+        if (!ok)
+            failures++;
+    }
+
+    static RMTable committedFlight(int numAvail)
+    {
+        RMTable table = new RMTable("Flights", null, -1, lm);
+        table.put(new Flight("F", numAvail, numAvail, 100));
+        return table;
+    }
+
+    static RMTable start(RMTable committed)
+    {
+        return new RMTable("Flights", committed, nextXid++, lm);
+    }
+
+    static int numAvail(RMTable table)
+    {
+        return ((Flight) table.get("F")).getNumAvail();
+    }
+
+    /** Commits t's escrowed changes the way the RM does, times times. */
+    static void commit(RMTable committed, RMTable t, int times)
+    {
+        Map taken = t.escrowToRows();
+        for (int i = 0; i < times; i++)
+        {
+            for (Iterator iter = t.values().iterator(); iter.hasNext();)
+                committed.commitRow((ResourceItem) iter.next(), 0);
+        }
+        t.releaseTaken(taken);
+    }
+
+    static void test1()
+    {
+        System.out.println("Overbooking test");
+        RMTable committed = committedFlight(5);
+        RMTable t1 = start(committed);
+        RMTable t2 = start(committed);
+        RMTable t3 = start(committed);
+        check(t1.escrow("F", -3), "3 of 5 seats can be taken");
+        check(!t2.escrow("F", -3), "3 more cannot, although none is committed");
+        check(t2.escrow("F", -2), "the last 2 can");
+        check(!t3.escrow("F", -1), "and then none");
+        check(numAvail(t1) == 2 && numAvail(t2) == 3, "each transaction sees its own booking only");
+        check(numAvail(committed) == 5, "the committed row is unchanged");
+
+        RMTable t4 = start(committed);
+        check(t4.escrow("F", 1), "a seat can be returned");
+        check(!t3.escrow("F", -1), "a returned seat cannot be taken before it is committed");
+        t1.abortEscrow();
+        check(t3.escrow("F", -3), "the seats of an aborted booking can be taken again");
+    }
+
+    static void test2()
+    {
+        System.out.println("Redo test");
+        RMTable committed = committedFlight(10);
+        RMTable t1 = start(committed);
+        check(t1.escrow("F", -4), "4 of 10 seats taken");
+        // a crash after the committed table took the rows: recovery
+        // commits them again
+        commit(committed, t1, 2);
+        check(numAvail(committed) == 6, "applied twice, the booking still takes 4 seats: " + numAvail(committed));
+        RMTable t2 = start(committed);
+        RMTable t3 = start(committed);
+        check(t2.escrow("F", -6), "the 6 seats left can be taken");
+        check(!t3.escrow("F", -1), "but no more");
+    }
+
+    static void test3() throws Exception
+    {
+        System.out.println("Recovered booking test");
+        RMTable committed = committedFlight(10);
+        RMTable t1 = start(committed);
+        check(t1.escrow("F", -3), "3 of 10 seats taken");
+        // a restart: the committed table and t1's table are read back
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bout);
+        out.writeObject(t1);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray()));
+        RMTable recovered = (RMTable) in.readObject();
+        in.close();
+        committed = committedFlight(10);
+        recovered.setParent(committed);
+        recovered.restoreEscrow();
+        RMTable t2 = start(committed);
+        check(!t2.escrow("F", -8), "the recovered booking still holds its seats");
+        check(t2.escrow("F", -7), "the rest can be taken");
+        commit(committed, recovered, 1);
+        check(numAvail(committed) == 7, "committing the recovered booking takes its seats");
+    }
+}
@@ -3,7 +3,9 @@ package transaction;
 /**
  * Flight table row.
  */
-public class Flight implements ResourceItem {
+public class Flight implements InventoryItem {
+    private static final long serialVersionUID = 3128302199029501964L;
+
     public static final String INDEX_FLIGHT_NUM = "flightNum";
 
     private String flightNum;
@@ -34,6 +36,10 @@ public class Flight implements ResourceItem {
         throw new InvalidIndexException(indexName);
     }
 
+    public String[] getIndexNames() {
+        return new String[] { INDEX_FLIGHT_NUM };
+    }
+
     public Object getKey() {
         return flightNum;
     }
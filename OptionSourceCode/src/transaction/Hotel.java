@@ -3,7 +3,9 @@ package transaction;
 /**
  * Hotel table row.
  */
-public class Hotel implements ResourceItem {
+public class Hotel implements InventoryItem {
+    private static final long serialVersionUID = -7137546988200733250L;
+
     public static final String INDEX_LOCATION = "location";
 
     private String location;
@@ -34,6 +36,10 @@ public class Hotel implements ResourceItem {
         throw new InvalidIndexException(indexName);
     }
 
+    public String[] getIndexNames() {
+        return new String[] { INDEX_LOCATION };
+    }
+
     public Object getKey() {
         return location;
     }
@@ -0,0 +1,12 @@
+package transaction;
+
+/**
+ * A row with a count of available units (seats, rooms, cars), which
+ * transactions may change by escrow instead of overwriting the row.
+ */
+public interface InventoryItem extends ResourceItem
+{
+    public int getNumAvail();
+
+    public void setNumAvail(int numAvail);
+}
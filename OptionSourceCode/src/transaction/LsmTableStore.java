@@ -0,0 +1,580 @@
+package transaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * Log-structured TableStore for insert/delete heavy tables such as
+ * Reservations.
+ * <p>
+ * Writes go to an in-memory memtable sorted by key; flush() appends the
+ * changes made since the previous flush to a write-ahead log, so a commit
+ * costs one sequential append. When the memtable grows past MEMTABLE_LIMIT
+ * it is written out as an immutable SortedRun and the WAL is truncated.
+ * Lookups check the memtable, then the runs from newest to oldest, skipping
+ * runs whose bloom filter rules the key out. A background thread merges the
+ * runs into one once there are COMPACT_RUNS of them, dropping tombstones.
+ * <p>
+ * Files, for a base name data/T.lsm: the WAL data/T.lsm.wal and the runs
+ * data/T.lsm.&lt;seq&gt;. A compaction writes data/T.lsm.&lt;seq&gt;.tmp, renames it
+ * to .m once it is complete, removes the runs it replaces and finally renames
+ * it to data/T.lsm.&lt;seq&gt;; opening the store finishes an interrupted
+ * compaction.
+ */
+public class LsmTableStore implements TableStore
+{
+    protected final static int MEMTABLE_LIMIT = 4096;
+
+    protected final static int COMPACT_RUNS = 4;
+
+    protected final static byte WAL_PUT = 1;
+
+    protected final static byte WAL_DELETE = 2;
+
+    protected File dir;
+
+    protected String base;
+
+    /** keyString -> encoded row, or SortedRun.TOMBSTONE */
+    protected TreeMap memtable = new TreeMap();
+
+    /** changes not yet written to the WAL, as {keyString, row} pairs */
+    protected ArrayList unlogged = new ArrayList();
+
+    /** oldest first */
+    protected ArrayList runs = new ArrayList();
+
+    protected int nextSeq = 1;
+
+    protected FileOutputStream wal = null;
+
+    protected boolean closed = false;
+
+    protected Thread compactor;
+
+    public LsmTableStore(File dir, String base) throws IOException
+    {
+        this.dir = dir;
+        this.base = base;
+        dir.mkdirs();
+        recoverFiles();
+        replayWal();
+        compactor = new Thread("compactor-" + base)
+        {
+            public void run()
+            {
+                compactLoop();
+            }
+        };
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    protected File runFile(int seq)
+    {
+        return new File(dir, base + "." + seq);
+    }
+
+    protected File walFile()
+    {
+        return new File(dir, base + ".wal");
+    }
+
+    /**
+     * Opens the existing runs in sequence order, finishing or discarding an
+     * interrupted compaction first.
+     */
+    protected void recoverFiles() throws IOException
+    {
+        String prefix = base + ".";
+        File[] files = dir.listFiles();
+        ArrayList seqs = new ArrayList();
+        for (int i = 0; i < files.length; i++)
+        {
+            String name = files[i].getName();
+            if (!name.startsWith(prefix))
+                continue;
+            String rest = name.substring(prefix.length());
+            if (rest.endsWith(".tmp"))
+            {
+                files[i].delete();
+            }
+            else if (rest.endsWith(".m"))
+            {
+                int merged = Integer.parseInt(rest.substring(0, rest.length() - 2));
+                for (int j = 0; j < files.length; j++)
+                {
+                    int seq = runSeq(files[j].getName(), prefix);
+                    if (seq != -1 && seq <= merged)
+                        files[j].delete();
+                }
+                files[i].renameTo(runFile(merged));
+            }
+        }
+        files = dir.listFiles();
+        for (int i = 0; i < files.length; i++)
+        {
+            int seq = runSeq(files[i].getName(), prefix);
+            if (seq != -1)
+                seqs.add(new Integer(seq));
+        }
+        Collections.sort(seqs);
+        for (Iterator iter = seqs.iterator(); iter.hasNext();)
+        {
+            int seq = ((Integer) iter.next()).intValue();
+            runs.add(new SortedRun(runFile(seq)));
+            nextSeq = seq + 1;
+        }
+    }
+
+    protected static int runSeq(String name, String prefix)
+    {
+        if (!name.startsWith(prefix))
+            return -1;
+        String rest = name.substring(prefix.length());
+        for (int i = 0; i < rest.length(); i++)
+        {
+            if (!Character.isDigit(rest.charAt(i)))
+                return -1;
+        }
+        return rest.length() == 0 ? -1 : Integer.parseInt(rest);
+    }
+
+    protected void replayWal() throws IOException
+    {
+        File file = walFile();
+        if (!file.exists())
+            return;
+        byte[] data = new byte[(int) file.length()];
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.readFully(data);
+            ByteArrayInputStream bin = new ByteArrayInputStream(data);
+            DataInputStream in = new DataInputStream(bin);
+            int valid = 0;
+            try
+            {
+                while (true)
+                {
+                    byte op = in.readByte();
+                    if (op != WAL_PUT && op != WAL_DELETE)
+                        break;
+                    String key = in.readUTF();
+                    int len = in.readInt();
+                    if (len < 0 || len > bin.available())
+                        break;
+                    byte[] row = new byte[len];
+                    in.readFully(row);
+                    memtable.put(key, op == WAL_DELETE ? SortedRun.TOMBSTONE : row);
+                    valid = data.length - bin.available();
+                }
+            }
+            catch (EOFException e)
+            {
+                // end of log, or a torn last record
+            }
+            if (valid < data.length)
+            {
+                // cut the torn record off, or records appended after it
+                // would never be replayed
+                raf.setLength(valid);
+                raf.getFD().sync();
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    public synchronized ResourceItem get(Object key)
+    {
+        String k = RowCodec.keyString(key);
+        byte[] row = (byte[]) memtable.get(k);
+        try
+        {
+            for (int i = runs.size() - 1; row == null && i >= 0; i--)
+                row = ((SortedRun) runs.get(i)).get(k);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Can't read " + base + ": " + e);
+        }
+        if (row == null || row.length == 0)
+            return null;
+        return RowCodec.decode(row);
+    }
+
+    public synchronized void put(ResourceItem item)
+    {
+        String k = RowCodec.keyString(item.getKey());
+        byte[] row = RowCodec.encode(item);
+        memtable.put(k, row);
+        unlogged.add(new Object[] { k, row });
+    }
+
+    public synchronized void remove(Object key)
+    {
+        String k = RowCodec.keyString(key);
+        memtable.put(k, SortedRun.TOMBSTONE);
+        unlogged.add(new Object[] { k, SortedRun.TOMBSTONE });
+    }
+
+    /**
+     * Streams the keys out of a merge of the runs and a copy of the memtable,
+     * holding one entry per source in memory. The runs are read through
+     * private streams opened here, so a later compaction does not disturb
+     * the iteration; changes made after the call may or may not be seen.
+     */
+    public synchronized Iterator keys()
+    {
+        Iterator[] sources = new Iterator[runs.size() + 1];
+        try
+        {
+            for (int i = 0; i < runs.size(); i++)
+                sources[i] = ((SortedRun) runs.get(i)).iterator();
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Can't read " + base + ": " + e);
+        }
+        sources[runs.size()] = entries(new TreeMap(memtable));
+        final MergeIterator merged = new MergeIterator(sources);
+        return new Iterator()
+        {
+            String next = null;
+
+            public boolean hasNext()
+            {
+                while (next == null && merged.hasNext())
+                {
+                    SortedRun.Entry e = (SortedRun.Entry) merged.next();
+                    if (e.value.length > 0)
+                        next = e.key;
+                }
+                return next != null;
+            }
+
+            public Object next()
+            {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Object key = RowCodec.parseKey(next);
+                next = null;
+                return key;
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Estimates the row count from the entry counts of the runs and the
+     * memtable without reading any rows. Overwritten rows and tombstones are
+     * counted too, so this is an upper bound; it is 0 only for an empty
+     * store.
+     */
+    public synchronized int size()
+    {
+        int n = memtable.size();
+        for (int i = 0; i < runs.size(); i++)
+            n += ((SortedRun) runs.get(i)).getCount();
+        return n;
+    }
+
+    /**
+     * @return the entries of a memtable as SortedRun.Entry objects.
+     */
+    protected static Iterator entries(TreeMap map)
+    {
+        final Iterator iter = map.entrySet().iterator();
+        return new Iterator()
+        {
+            public boolean hasNext()
+            {
+                return iter.hasNext();
+            }
+
+            public Object next()
+            {
+                Map.Entry e = (Map.Entry) iter.next();
+                return new SortedRun.Entry((String) e.getKey(), (byte[]) e.getValue());
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Merges key-ordered sources of SortedRun.Entry, oldest first, into one
+     * key-ordered sequence. For a key present in several sources the newest
+     * entry wins; tombstones are passed on.
+     */
+    protected static class MergeIterator implements Iterator
+    {
+        protected Iterator[] iters;
+
+        protected SortedRun.Entry[] heads;
+
+        public MergeIterator(Iterator[] iters)
+        {
+            this.iters = iters;
+            heads = new SortedRun.Entry[iters.length];
+            for (int i = 0; i < iters.length; i++)
+                advance(i);
+        }
+
+        protected void advance(int i)
+        {
+            heads[i] = iters[i].hasNext() ? (SortedRun.Entry) iters[i].next() : null;
+        }
+
+        public boolean hasNext()
+        {
+            for (int i = 0; i < heads.length; i++)
+            {
+                if (heads[i] != null)
+                    return true;
+            }
+            return false;
+        }
+
+        public Object next()
+        {
+            String min = null;
+            for (int i = 0; i < heads.length; i++)
+            {
+                if (heads[i] != null && (min == null || heads[i].key.compareTo(min) < 0))
+                    min = heads[i].key;
+            }
+            if (min == null)
+                throw new NoSuchElementException();
+            SortedRun.Entry newest = null;
+            // later sources are newer and win
+            for (int i = 0; i < heads.length; i++)
+            {
+                if (heads[i] != null && heads[i].key.equals(min))
+                {
+                    newest = heads[i];
+                    advance(i);
+                }
+            }
+            return newest;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public int getMaxRowSize()
+    {
+        // rows are length-prefixed; only the key, a UTF string, is bounded
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Appends the pending changes to the WAL and forces it; spills the
+     * memtable to a new run once it is large enough.
+     */
+    public synchronized boolean flush()
+    {
+        try
+        {
+            if (!unlogged.isEmpty())
+            {
+                ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bout);
+                for (Iterator iter = unlogged.iterator(); iter.hasNext();)
+                {
+                    Object[] change = (Object[]) iter.next();
+                    byte[] row = (byte[]) change[1];
+                    out.writeByte(row.length == 0 ? WAL_DELETE : WAL_PUT);
+                    out.writeUTF((String) change[0]);
+                    out.writeInt(row.length);
+                    out.write(row);
+                }
+                out.flush();
+                if (wal == null)
+                    wal = new FileOutputStream(walFile(), true);
+                bout.writeTo(wal);
+                wal.getFD().sync();
+                unlogged.clear();
+            }
+            if (memtable.size() >= MEMTABLE_LIMIT)
+                spillMemtable();
+            return true;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    protected void spillMemtable() throws IOException
+    {
+        int seq = nextSeq++;
+        File tmp = new File(dir, base + "." + seq + ".tmp");
+        SortedRun.Writer writer = new SortedRun.Writer(tmp, memtable.size());
+        try
+        {
+            for (Iterator iter = memtable.entrySet().iterator(); iter.hasNext();)
+            {
+                Map.Entry e = (Map.Entry) iter.next();
+                writer.add((String) e.getKey(), (byte[]) e.getValue());
+            }
+            writer.finish();
+        }
+        catch (IOException e)
+        {
+            writer.abandon();
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(runFile(seq)))
+            throw new IOException("Can't install run " + runFile(seq));
+        runs.add(new SortedRun(runFile(seq)));
+        memtable.clear();
+        if (wal != null)
+            wal.close();
+        wal = new FileOutputStream(walFile(), false);
+        if (runs.size() >= COMPACT_RUNS)
+            notifyAll();
+    }
+
+    protected void compactLoop()
+    {
+        while (true)
+        {
+            ArrayList inputs;
+            synchronized (this)
+            {
+                while (!closed && runs.size() < COMPACT_RUNS)
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                    }
+                }
+                if (closed)
+                    return;
+                inputs = new ArrayList(runs);
+            }
+            try
+            {
+                compact(inputs);
+            }
+            catch (IOException e)
+            {
+                System.err.println("Compaction of " + base + " failed: " + e);
+                try
+                {
+                    Thread.sleep(1000);
+                }
+                catch (InterruptedException e1)
+                {
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges the given runs, which must be the oldest runs of the store, into
+     * one. Because nothing older remains, tombstones are dropped.
+     */
+    protected void compact(ArrayList inputs) throws IOException
+    {
+        SortedRun newest = (SortedRun) inputs.get(inputs.size() - 1);
+        String newestName = newest.getFile().getName();
+        int seq = Integer.parseInt(newestName.substring(base.length() + 1));
+        int expected = 0;
+        Iterator[] iters = new Iterator[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++)
+        {
+            SortedRun run = (SortedRun) inputs.get(i);
+            expected += run.getCount();
+            iters[i] = run.iterator();
+        }
+        MergeIterator entries = new MergeIterator(iters);
+
+        File tmp = new File(dir, base + "." + seq + ".tmp");
+        SortedRun.Writer writer = new SortedRun.Writer(tmp, expected);
+        try
+        {
+            while (entries.hasNext())
+            {
+                SortedRun.Entry e = (SortedRun.Entry) entries.next();
+                if (e.value.length > 0)
+                    writer.add(e.key, e.value);
+            }
+            writer.finish();
+        }
+        catch (IOException e)
+        {
+            writer.abandon();
+            tmp.delete();
+            throw e;
+        }
+
+        File marker = new File(dir, base + "." + seq + ".m");
+        if (!tmp.renameTo(marker))
+            throw new IOException("Can't install compacted run " + marker);
+        synchronized (this)
+        {
+            // open descriptors keep the inputs readable until they are closed
+            for (Iterator iter = inputs.iterator(); iter.hasNext();)
+                ((SortedRun) iter.next()).getFile().delete();
+            if (!marker.renameTo(runFile(seq)))
+                throw new IOException("Can't install compacted run " + runFile(seq));
+            SortedRun merged = new SortedRun(runFile(seq));
+            runs.removeAll(inputs);
+            runs.add(0, merged);
+            for (Iterator iter = inputs.iterator(); iter.hasNext();)
+                ((SortedRun) iter.next()).close();
+        }
+    }
+
+    public void close()
+    {
+        synchronized (this)
+        {
+            flush();
+            closed = true;
+            notifyAll();
+            try
+            {
+                if (wal != null)
+                    wal.close();
+            }
+            catch (IOException e)
+            {
+            }
+            for (Iterator iter = runs.iterator(); iter.hasNext();)
+                ((SortedRun) iter.next()).close();
+        }
+    }
+}
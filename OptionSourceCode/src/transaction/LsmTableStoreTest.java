@@ -0,0 +1,183 @@
+package transaction;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Checks that an LsmTableStore keeps its rows across a reopen, from both
+ * the runs and the write-ahead log, that a torn record at the end of the
+ * log is cut off so that later records are replayed, and that compaction
+ * merges the runs without bringing deleted rows back. Exits with status 1
+ * if a check fails.
+ */
+class LsmTableStoreTest
+{
+    static File dir = new File(System.getProperty("java.io.tmpdir"), "LsmTableStoreTest");
+
+    static int failures = 0;
+
+    public static void main(String[] args) throws Exception
+    {
+        test1();
+        test2();
+        test3();
+        if (failures > 0)
+        {
+            System.out.println(failures + " check(s) FAILED");
+            System.exit(1);
+        }
+        System.out.println("ALL CHECKS PASSED");
+    }
+
+    static void check(boolean ok, String what)
+    {
+        System.out.println((ok ? "ok     " : "FAILED ") + what);
+        if (!ok)
+            failures++;
+    }
+
+    static LsmTableStore freshStore(String base) throws IOException
+    {
+        dir.mkdirs();
+        File[] files = dir.listFiles();
+        for (int i = 0; i < files.length; i++)
+        {
+            if (files[i].getName().startsWith(base + "."))
+                files[i].delete();
+        }
+        return new LsmTableStore(dir, base);
+    }
+
+    static Set keySet(TableStore store)
+    {
+        Set keys = new HashSet();
+        for (Iterator iter = store.keys(); iter.hasNext();)
+            keys.add(iter.next());
+        return keys;
+    }
+
+    static void test1() throws IOException
+    {
+        System.out.println("Reopen test");
+        LsmTableStore store = freshStore("reopen.lsm");
+        // enough for two runs and a memtable that only the WAL holds
+        int n = LsmTableStore.MEMTABLE_LIMIT * 2 + 500;
+        Set live = new HashSet();
+        for (int i = 0; i < n; i++)
+        {
+            Reservation r = new Reservation("c" + i % 50, Reservation.RESERVATION_TYPE_FLIGHT, "F" + i);
+            store.put(r);
+            live.add(r.getKey());
+            if (i % 100 == 99)
+                store.flush();
+        }
+        for (int i = 0; i < n; i += 7)
+        {
+            Reservation r = new Reservation("c" + i % 50, Reservation.RESERVATION_TYPE_FLIGHT, "F" + i);
+            store.remove(r.getKey());
+            live.remove(r.getKey());
+        }
+        check(store.flush(), "flush");
+        check(store.runs.size() >= 2, "the memtable was spilled to runs");
+
+        // keys() streams: writes during the iteration must not break it
+        Iterator iter = store.keys();
+        iter.next();
+        store.put(new Reservation("late", Reservation.RESERVATION_TYPE_CAR, "X"));
+        int seen = 1;
+        while (iter.hasNext())
+        {
+            iter.next();
+            seen++;
+        }
+        check(seen == live.size(), "keys() read " + seen + " keys while the store changed");
+        store.remove(new Reservation("late", Reservation.RESERVATION_TYPE_CAR, "X").getKey());
+        store.close();
+
+        store = new LsmTableStore(dir, "reopen.lsm");
+        check(keySet(store).equals(live), "keys() lists exactly the live rows after reopen");
+        boolean same = true;
+        for (int i = 0; i < n; i++)
+        {
+            Reservation r = new Reservation("c" + i % 50, Reservation.RESERVATION_TYPE_FLIGHT, "F" + i);
+            ResourceItem got = store.get(r.getKey());
+            same &= live.contains(r.getKey()) ? got != null && got.getKey().equals(r.getKey()) : got == null;
+        }
+        check(same, "every row reads back as last written");
+        check(store.size() >= live.size(), "size() does not undercount");
+        store.close();
+    }
+
+    static void test2() throws IOException
+    {
+        System.out.println("Torn log tail test");
+        LsmTableStore store = freshStore("torn.lsm");
+        for (int i = 0; i < 10; i++)
+            store.put(new Customer("C" + i));
+        store.flush();
+        store.close();
+        // a crash in the middle of appending a record
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(dir, "torn.lsm.wal"), true));
+        out.writeByte(LsmTableStore.WAL_PUT);
+        out.writeUTF(RowCodec.keyString("C10"));
+        out.writeInt(100);
+        out.write(new byte[10]);
+        out.close();
+
+        store = new LsmTableStore(dir, "torn.lsm");
+        check(store.size() == 10 && store.get("C10") == null, "the rows before the torn record are replayed");
+        store.put(new Customer("C11"));
+        store.flush();
+        store.close();
+        store = new LsmTableStore(dir, "torn.lsm");
+        check(store.get("C11") != null, "a row logged after the torn record survives a reopen");
+        check(keySet(store).size() == 11, "and nothing else appears");
+        store.close();
+    }
+
+    static void test3() throws Exception
+    {
+        System.out.println("Compaction test");
+        LsmTableStore store = freshStore("compact.lsm");
+        int limit = LsmTableStore.MEMTABLE_LIMIT;
+        // COMPACT_RUNS spills; the last one deletes rows of the first
+        for (int run = 0; run < LsmTableStore.COMPACT_RUNS; run++)
+        {
+            boolean last = run == LsmTableStore.COMPACT_RUNS - 1;
+            for (int i = 0; i < (last ? limit - 100 : limit); i++)
+                store.put(new Customer("R" + run + "-" + i));
+            if (last)
+            {
+                for (int i = 0; i < 100; i++)
+                    store.remove("R0-" + i);
+            }
+            store.flush();
+        }
+        long deadline = System.currentTimeMillis() + 30000;
+        while (runCount(store) > 1 && System.currentTimeMillis() < deadline)
+            Thread.sleep(50);
+        check(runCount(store) == 1, "the runs were merged into one");
+        int live = limit * LsmTableStore.COMPACT_RUNS - 200;
+        check(store.size() == live, "the merged run holds no tombstones: size() is " + store.size());
+        check(store.get("R0-5") == null && store.get("R0-100") != null, "deleted rows stay deleted");
+        store.close();
+
+        store = new LsmTableStore(dir, "compact.lsm");
+        Set keys = keySet(store);
+        check(keys.size() == live && !keys.contains("R0-0"), "the merged run is read back after reopen");
+        store.close();
+    }
+
+    static int runCount(LsmTableStore store)
+    {
+        synchronized (store)
+        {
+            return store.runs.size();
+        }
+    }
+}
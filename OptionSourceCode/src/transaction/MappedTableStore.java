@@ -0,0 +1,215 @@
+package transaction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * TableStore that keeps a committed table in a memory-mapped file of
+ * fixed-size slots.
+ * <p>
+ * File layout: a header (magic, slot size, slot count) followed by the
+ * slots. Each slot holds a state byte, the length of the encoded row and the
+ * row itself as produced by RowCodec, so the numeric columns of a row always
+ * sit at the same offset. Updating a row rewrites its slot in place and
+ * flush() only has to write back the pages that were touched. On open the
+ * file is mapped and scanned once to build the key -> slot index from the
+ * keys alone; rows are decoded from the mapping on demand.
+ */
+public class MappedTableStore implements TableStore
+{
+    protected final static int MAGIC = 0x44424d31;
+
+    protected final static int HEADER_SIZE = 16;
+
+    protected final static int SLOT_SIZE = 256;
+
+    protected final static int INITIAL_SLOTS = 256;
+
+    protected final static byte SLOT_FREE = 0;
+
+    protected final static byte SLOT_USED = 1;
+
+    protected File file;
+
+    protected RandomAccessFile raf;
+
+    protected FileChannel channel;
+
+    protected MappedByteBuffer map;
+
+    protected int capacity;
+
+    protected HashMap index = new HashMap();
+
+    protected LinkedList freeSlots = new LinkedList();
+
+    public MappedTableStore(File file) throws IOException
+    {
+        this.file = file;
+        file.getParentFile().mkdirs();
+        boolean created = !file.exists() || file.length() < HEADER_SIZE;
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        if (created)
+        {
+            capacity = INITIAL_SLOTS;
+            mapFile();
+            map.putInt(0, MAGIC);
+            map.putInt(4, SLOT_SIZE);
+            map.putInt(8, capacity);
+            map.force();
+        }
+        else
+        {
+            capacity = (int) ((file.length() - HEADER_SIZE) / SLOT_SIZE);
+            mapFile();
+            if (map.getInt(0) != MAGIC || map.getInt(4) != SLOT_SIZE)
+                throw new IOException("Not a mapped table file: " + file);
+        }
+        buildIndex();
+    }
+
+    protected void mapFile() throws IOException
+    {
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+    }
+
+    protected void buildIndex()
+    {
+        for (int slot = 0; slot < capacity; slot++)
+        {
+            if (map.get(offset(slot)) == SLOT_USED)
+                index.put(RowCodec.decodeKey(slotBytes(slot)), new Integer(slot));
+            else
+                freeSlots.add(new Integer(slot));
+        }
+    }
+
+    protected int offset(int slot)
+    {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    protected byte[] slotBytes(int slot)
+    {
+        int off = offset(slot);
+        int len = map.getShort(off + 1);
+        byte[] buf = new byte[len];
+        for (int i = 0; i < len; i++)
+            buf[i] = map.get(off + 3 + i);
+        return buf;
+    }
+
+    protected ResourceItem readSlot(int slot)
+    {
+        return RowCodec.decode(slotBytes(slot));
+    }
+
+    protected void writeSlot(int slot, byte[] row)
+    {
+        int off = offset(slot);
+        for (int i = 0; i < row.length; i++)
+            map.put(off + 3 + i, row[i]);
+        map.putShort(off + 1, (short) row.length);
+        map.put(off, SLOT_USED);
+    }
+
+    protected void grow()
+    {
+        int oldCapacity = capacity;
+        capacity = capacity * 2;
+        try
+        {
+            map.force();
+            mapFile();
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Can't grow mapped table " + file + ": " + e);
+        }
+        map.putInt(8, capacity);
+        for (int slot = oldCapacity; slot < capacity; slot++)
+            freeSlots.add(new Integer(slot));
+    }
+
+    public synchronized ResourceItem get(Object key)
+    {
+        Integer slot = (Integer) index.get(key);
+        if (slot == null)
+            return null;
+        return readSlot(slot.intValue());
+    }
+
+    public synchronized void put(ResourceItem item)
+    {
+        byte[] row = RowCodec.encode(item);
+        if (row.length > getMaxRowSize())
+            throw new IllegalArgumentException("Row too large for a mapped slot: " + item.getKey());
+        Integer slot = (Integer) index.get(item.getKey());
+        if (slot == null)
+        {
+            if (freeSlots.isEmpty())
+                grow();
+            slot = (Integer) freeSlots.removeFirst();
+            index.put(item.getKey(), slot);
+        }
+        writeSlot(slot.intValue(), row);
+    }
+
+    public synchronized void remove(Object key)
+    {
+        Integer slot = (Integer) index.remove(key);
+        if (slot == null)
+            return;
+        map.put(offset(slot.intValue()), SLOT_FREE);
+        freeSlots.addFirst(slot);
+    }
+
+    public synchronized Iterator keys()
+    {
+        return new ArrayList(index.keySet()).iterator();
+    }
+
+    public synchronized int size()
+    {
+        return index.size();
+    }
+
+    public int getMaxRowSize()
+    {
+        return SLOT_SIZE - 3;
+    }
+
+    public synchronized boolean flush()
+    {
+        try
+        {
+            map.force();
+            return true;
+        }
+        catch (Exception e)
+        {
+            return false;
+        }
+    }
+
+    public synchronized void close()
+    {
+        flush();
+        try
+        {
+            channel.close();
+            raf.close();
+        }
+        catch (IOException e)
+        {
+        }
+    }
+}
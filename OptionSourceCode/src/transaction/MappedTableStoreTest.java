@@ -0,0 +1,122 @@
+package transaction;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Checks that a MappedTableStore keeps its rows across a reopen, grows past
+ * its initial slots, reuses freed slots and ignores a partial slot at the
+ * end of the file. Exits with status 1 if a check fails.
+ */
+class MappedTableStoreTest
+{
+    static File dir = new File(System.getProperty("java.io.tmpdir"), "MappedTableStoreTest");
+
+    static int failures = 0;
+
+    public static void main(String[] args) throws IOException
+    {
+        test1();
+        test2();
+        test3();
+        if (failures > 0)
+        {
+            System.out.println(failures + " check(s) FAILED");
+            System.exit(1);
+        }
+        System.out.println("ALL CHECKS PASSED");
+    }
+
+    static void check(boolean ok, String what)
+    {
+        System.out.println((ok ? "ok     " : "FAILED ") + what);
+        if (!ok)
+            failures++;
+    }
+
+    static File freshFile(String name)
+    {
+        dir.mkdirs();
+        File file = new File(dir, name);
+        file.delete();
+        return file;
+    }
+
+    static void test1() throws IOException
+    {
+        System.out.println("Reopen test");
+        File file = freshFile("reopen.mmap");
+        MappedTableStore store = new MappedTableStore(file);
+        // more rows than the initial slots, so the file is grown
+        int n = MappedTableStore.INITIAL_SLOTS * 3;
+        for (int i = 0; i < n; i++)
+            store.put(new Flight("F" + i, 100, 100 - i % 100, i));
+        store.put(new Flight("F7", 100, 1, 777));
+        store.remove("F8");
+        check(store.flush(), "flush");
+        store.close();
+
+        store = new MappedTableStore(file);
+        check(store.size() == n - 1, "size after reopen is " + store.size());
+        check(store.get("F8") == null, "removed row stays removed");
+        Flight f = (Flight) store.get("F7");
+        check(f != null && f.getPrice() == 777 && f.getNumAvail() == 1, "updated row keeps its update");
+        boolean same = true;
+        for (int i = 0; i < n; i++)
+        {
+            Flight g = (Flight) store.get("F" + i);
+            if (i != 7 && i != 8 && (g == null || g.getPrice() != i || g.getNumAvail() != 100 - i % 100))
+                same = false;
+        }
+        check(same, "every other row reads back unchanged");
+        Set keys = new HashSet();
+        for (Iterator iter = store.keys(); iter.hasNext();)
+            keys.add(iter.next());
+        check(keys.size() == n - 1 && !keys.contains("F8"), "keys() lists the live rows");
+        store.close();
+    }
+
+    static void test2() throws IOException
+    {
+        System.out.println("Slot reuse test");
+        File file = freshFile("reuse.mmap");
+        MappedTableStore store = new MappedTableStore(file);
+        for (int i = 0; i < MappedTableStore.INITIAL_SLOTS; i++)
+            store.put(new Car("L" + i, 10, 10, 5));
+        long length = file.length();
+        store.remove("L3");
+        store.put(new Car("X", 10, 10, 5));
+        check(file.length() == length, "a freed slot is reused before the file grows");
+        store.close();
+        store = new MappedTableStore(file);
+        check(store.get("X") != null && store.get("L3") == null, "the reused slot holds the new row after reopen");
+        store.close();
+    }
+
+    static void test3() throws IOException
+    {
+        System.out.println("Torn tail test");
+        File file = freshFile("torn.mmap");
+        MappedTableStore store = new MappedTableStore(file);
+        for (int i = 0; i < 10; i++)
+            store.put(new Hotel("H" + i, 50, 50, 3));
+        store.close();
+        // a crash while the file was being extended leaves part of a slot
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[MappedTableStore.SLOT_SIZE / 2]);
+        out.close();
+
+        store = new MappedTableStore(file);
+        check(store.size() == 10, "rows before the partial slot survive");
+        for (int i = 10; i < MappedTableStore.INITIAL_SLOTS + 10; i++)
+            store.put(new Hotel("H" + i, 50, 50, 3));
+        store.close();
+        store = new MappedTableStore(file);
+        check(store.size() == MappedTableStore.INITIAL_SLOTS + 10, "rows written after it survive a reopen");
+        store.close();
+    }
+}
@@ -0,0 +1,162 @@
+package transaction;
+
+import java.io.Serializable;
+
+/**
+ * One step of a batch passed to ResourceManager.execute. Each factory method
+ * mirrors the single-call RM operation of the same name; the comment on it
+ * gives the type of the matching entry in the result list.
+ */
+public class Operation implements Serializable
+{
+    public final static int QUERY = 1;
+
+    public final static int QUERY_INDEX = 2;
+
+    public final static int INSERT = 3;
+
+    public final static int UPDATE = 4;
+
+    public final static int DELETE = 5;
+
+    public final static int DELETE_INDEX = 6;
+
+    public final static int ADJUST_AVAIL = 7;
+
+    public final static int DECREMENT = 8;
+
+    protected int type;
+
+    protected String tablename;
+
+    protected Object key;
+
+    protected ResourceItem item;
+
+    protected String indexName;
+
+    protected Object indexVal;
+
+    protected int amount;
+
+    protected Operation(int type, String tablename)
+    {
+        this.type = type;
+        this.tablename = tablename;
+    }
+
+    /** Result: the ResourceItem, or null. */
+    public static Operation query(String tablename, Object key)
+    {
+        Operation op = new Operation(QUERY, tablename);
+        op.key = key;
+        return op;
+    }
+
+    /** Result: a Collection of ResourceItems. */
+    public static Operation query(String tablename, String indexName, Object indexVal)
+    {
+        Operation op = new Operation(QUERY_INDEX, tablename);
+        op.indexName = indexName;
+        op.indexVal = indexVal;
+        return op;
+    }
+
+    /** Result: a Boolean. */
+    public static Operation insert(String tablename, ResourceItem item)
+    {
+        Operation op = new Operation(INSERT, tablename);
+        op.key = item.getKey();
+        op.item = item;
+        return op;
+    }
+
+    /** Result: a Boolean. */
+    public static Operation update(String tablename, Object key, ResourceItem item)
+    {
+        if (!key.equals(item.getKey()))
+            throw new IllegalArgumentException();
+        Operation op = new Operation(UPDATE, tablename);
+        op.key = key;
+        op.item = item;
+        return op;
+    }
+
+    /** Result: a Boolean. */
+    public static Operation delete(String tablename, Object key)
+    {
+        Operation op = new Operation(DELETE, tablename);
+        op.key = key;
+        return op;
+    }
+
+    /** Result: an Integer count of deleted rows. */
+    public static Operation delete(String tablename, String indexName, Object indexVal)
+    {
+        Operation op = new Operation(DELETE_INDEX, tablename);
+        op.indexName = indexName;
+        op.indexVal = indexVal;
+        return op;
+    }
+
+    /** Result: a Boolean. */
+    public static Operation adjustAvail(String tablename, Object key, int delta)
+    {
+        Operation op = new Operation(ADJUST_AVAIL, tablename);
+        op.key = key;
+        op.amount = delta;
+        return op;
+    }
+
+    /** Result: the ResourceItem after the decrement, or null. */
+    public static Operation decrementIfAvailable(String tablename, Object key, int amount)
+    {
+        if (amount < 0)
+            throw new IllegalArgumentException("Negative amount " + amount);
+        Operation op = new Operation(DECREMENT, tablename);
+        op.key = key;
+        op.amount = amount;
+        return op;
+    }
+
+    public int getType()
+    {
+        return type;
+    }
+
+    public String getTablename()
+    {
+        return tablename;
+    }
+
+    public Object getKey()
+    {
+        return key;
+    }
+
+    public ResourceItem getItem()
+    {
+        return item;
+    }
+
+    public String getIndexName()
+    {
+        return indexName;
+    }
+
+    public Object getIndexVal()
+    {
+        return indexVal;
+    }
+
+    public int getAmount()
+    {
+        return amount;
+    }
+
+    /** @return true if the operation may change rows. */
+    public boolean isWrite()
+    {
+        return type != QUERY && type != QUERY_INDEX;
+    }
+}
@@ -0,0 +1,136 @@
+package transaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import lockmgr.LockManager;
+
+/**
+ * Checks the backward validation of optimistic transactions in RMTable: a
+ * transaction fails if a row or index value it has seen was committed
+ * since, or if another prepared transaction claims a key it has seen or
+ * writes; transactions on disjoint rows both pass. Exits with status 1 if a
+ * check fails.
+ */
+class OptimisticValidationTest
+{
+    static LockManager lm = new LockManager();
+
+    static int failures = 0;
+
+    static int nextXid = 1;
+
+    public static void main(String[] args) throws Exception
+    {
+        test1();
+        test2();
+        test3();
+        test4();
+        test5();
+        if (failures > 0)
+        {
+            System.out.println(failures + " check(s) FAILED");
+            System.exit(1);
+        }
+        System.out.println("ALL CHECKS PASSED");
+    }
+
+    static void check(boolean ok, String what)
+    {
+        System.out.println((ok ? "ok     " : "FAILED ") + what);
+        if (!ok)
+            failures++;
+    }
+
+    static RMTable committedFlights()
+    {
+        RMTable table = new RMTable("Flights", null, -1, lm);
+        table.trackRowVersions();
+        for (int i = 0; i < 4; i++)
+            table.put(new Flight("F" + i, 10, 10, 100));
+        return table;
+    }
+
+    /** Starts a transaction that reads flight key and writes it back with one seat fewer. */
+    static RMTable bookSeat(RMTable committed, String key)
+    {
+        RMTable t = new RMTable("Flights", committed, nextXid++, lm);
+        t.recordRead(key);
+        Flight f = (Flight) t.get(key).clone();
+        f.setNumAvail(f.getNumAvail() - 1);
+        t.put(f);
+        return t;
+    }
+
+    static void test1()
+    {
+        System.out.println("Stale read test");
+        RMTable committed = committedFlights();
+        RMTable t1 = bookSeat(committed, "F0");
+        // another transaction commits F0 after t1 read it
+        committed.commitRow(new Flight("F0", 10, 5, 100), 1);
+        check(!t1.validateAndClaim(), "a transaction that read a since committed row fails");
+        RMTable t2 = bookSeat(committed, "F0");
+        check(t2.validateAndClaim(), "a transaction that read the new row passes");
+    }
+
+    static void test2()
+    {
+        System.out.println("Claim test");
+        RMTable committed = committedFlights();
+        RMTable t1 = bookSeat(committed, "F1");
+        RMTable t2 = bookSeat(committed, "F1");
+        check(t1.validateAndClaim(), "the first of two writers of a row passes");
+        check(!t2.validateAndClaim(), "the second fails while the first holds its claim");
+        // t1 aborts: its claims go, and a fresh writer of the row passes
+        t1.releaseClaims();
+        RMTable t3 = bookSeat(committed, "F1");
+        check(t3.validateAndClaim(), "a writer passes once the claim is released");
+    }
+
+    static void test3()
+    {
+        System.out.println("Disjoint rows test");
+        RMTable committed = committedFlights();
+        RMTable t1 = bookSeat(committed, "F2");
+        RMTable t2 = bookSeat(committed, "F3");
+        check(t1.validateAndClaim(), "a writer of one row passes");
+        check(t2.validateAndClaim(), "a concurrent writer of another row passes too");
+    }
+
+    static void test4()
+    {
+        System.out.println("Index read test");
+        RMTable committed = new RMTable("Reservations", null, -1, lm);
+        committed.trackRowVersions();
+        committed.put(new Reservation("Alice", Reservation.RESERVATION_TYPE_FLIGHT, "F0"));
+        // t1 lists Alice's reservations and books a car for Bob
+        RMTable t1 = new RMTable("Reservations", committed, nextXid++, lm);
+        t1.recordIndexRead(Reservation.INDEX_CUSTNAME, "Alice");
+        Reservation bob = new Reservation("Bob", Reservation.RESERVATION_TYPE_CAR, "SFO");
+        t1.recordRead(bob.getKey());
+        t1.put(bob);
+        // a reservation of Alice's is committed after the listing
+        committed.commitRow(new Reservation("Alice", Reservation.RESERVATION_TYPE_CAR, "SFO"), 1);
+        check(!t1.validateAndClaim(), "a transaction whose index read gained a row fails");
+    }
+
+    static void test5() throws Exception
+    {
+        System.out.println("Recovered table test");
+        RMTable committed = committedFlights();
+        RMTable t1 = bookSeat(committed, "F0");
+        // what a restart reads back from data/<xid>: the rows, not the reads
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bout);
+        out.writeObject(t1);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray()));
+        RMTable recovered = (RMTable) in.readObject();
+        in.close();
+        recovered.setParent(committed);
+        check(!recovered.validateAndClaim(), "a transaction whose reads were lost fails");
+    }
+}
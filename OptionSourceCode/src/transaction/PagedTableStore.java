@@ -0,0 +1,348 @@
+package transaction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * TableStore that keeps a committed table in fixed-size slotted pages,
+ * accessed through a bounded BufferPool.
+ * <p>
+ * Page layout: a 4-byte header (slot count, start of the row area), a slot
+ * directory growing from the front and the rows growing from the back. A
+ * row is an 8-byte sequence number followed by the encoded row (RowCodec).
+ * A slot entry is (offset, length); length 0 marks a free slot. Rows are
+ * addressed by (page, slot), which stays stable when a page is compacted.
+ * Only the key -> row id directory and one free-space counter per page are
+ * kept on the heap, so a table can be much larger than the buffer pool. A
+ * commit writes back only the pages it dirtied.
+ * <p>
+ * An update that no longer fits its slot moves the row: the new copy, with
+ * a new sequence number, is made durable before the old one is deleted. A
+ * crash in between leaves both, and opening the store keeps the newer.
+ */
+public class PagedTableStore implements TableStore
+{
+    protected final static int PAGE_SIZE = 4096;
+
+    protected final static int PAGE_HEADER = 4;
+
+    protected final static int SLOT_ENTRY = 4;
+
+    /** the sequence number in front of each row */
+    protected final static int ROW_HEADER = 8;
+
+    protected final static int DEFAULT_POOL_PAGES = 256;
+
+    protected File file;
+
+    protected RandomAccessFile raf;
+
+    protected FileChannel channel;
+
+    protected BufferPool pool;
+
+    protected int pageCount;
+
+    /** key -> row id (page << 16 | slot) */
+    protected HashMap directory = new HashMap();
+
+    /** per page: bytes that an insert could use, after compaction */
+    protected int[] freeSpace = new int[16];
+
+    /** sequence number of the next row inserted */
+    protected long nextSeq = 1;
+
+    public PagedTableStore(File file, int poolPages) throws IOException
+    {
+        this.file = file;
+        file.getParentFile().mkdirs();
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        pool = new BufferPool(channel, PAGE_SIZE, poolPages > 0 ? poolPages : DEFAULT_POOL_PAGES);
+        pageCount = (int) (file.length() / PAGE_SIZE);
+        ensureFreeSpaceCapacity(pageCount);
+        // key -> sequence number of the copy in directory
+        HashMap seqs = new HashMap();
+        ArrayList stale = new ArrayList();
+        for (int page = 0; page < pageCount; page++)
+        {
+            byte[] data = pool.getPage(page);
+            int slots = getShort(data, 0);
+            int used = PAGE_HEADER + slots * SLOT_ENTRY;
+            for (int slot = 0; slot < slots; slot++)
+            {
+                int len = getShort(data, PAGE_HEADER + slot * SLOT_ENTRY + 2);
+                if (len == 0)
+                    continue;
+                int off = getShort(data, PAGE_HEADER + slot * SLOT_ENTRY);
+                used += len;
+                long seq = getLong(data, off);
+                nextSeq = Math.max(nextSeq, seq + 1);
+                Object key = RowCodec.decodeKey(data, off + ROW_HEADER, len - ROW_HEADER);
+                Long other = (Long) seqs.get(key);
+                if (other != null && other.longValue() > seq)
+                {
+                    // a move cut short by a crash: the older copy goes
+                    stale.add(new Long(rid(page, slot)));
+                    continue;
+                }
+                if (other != null)
+                    stale.add(directory.get(key));
+                seqs.put(key, new Long(seq));
+                directory.put(key, new Long(rid(page, slot)));
+            }
+            freeSpace[page] = PAGE_SIZE - used;
+        }
+        for (Iterator iter = stale.iterator(); iter.hasNext();)
+            deleteRow(((Long) iter.next()).longValue());
+    }
+
+    protected static long rid(int page, int slot)
+    {
+        return ((long) page << 16) | slot;
+    }
+
+    protected static int getShort(byte[] data, int off)
+    {
+        return ((data[off] & 0xff) << 8) | (data[off + 1] & 0xff);
+    }
+
+    protected static void putShort(byte[] data, int off, int value)
+    {
+        data[off] = (byte) (value >>> 8);
+        data[off + 1] = (byte) value;
+    }
+
+    protected static long getLong(byte[] data, int off)
+    {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (data[off + i] & 0xff);
+        return value;
+    }
+
+    protected static void putLong(byte[] data, int off, long value)
+    {
+        for (int i = 7; i >= 0; i--)
+        {
+            data[off + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    protected void ensureFreeSpaceCapacity(int pages)
+    {
+        if (pages <= freeSpace.length)
+            return;
+        int[] grown = new int[Math.max(pages, freeSpace.length * 2)];
+        System.arraycopy(freeSpace, 0, grown, 0, freeSpace.length);
+        freeSpace = grown;
+    }
+
+    public synchronized ResourceItem get(Object key)
+    {
+        Long rid = (Long) directory.get(key);
+        if (rid == null)
+            return null;
+        int page = (int) (rid.longValue() >>> 16);
+        int slot = (int) (rid.longValue() & 0xffff);
+        try
+        {
+            byte[] data = pool.getPage(page);
+            int off = getShort(data, PAGE_HEADER + slot * SLOT_ENTRY);
+            int len = getShort(data, PAGE_HEADER + slot * SLOT_ENTRY + 2);
+            return RowCodec.decode(data, off + ROW_HEADER, len - ROW_HEADER);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Can't read page " + page + " of " + file + ": " + e);
+        }
+    }
+
+    public synchronized void put(ResourceItem item)
+    {
+        byte[] row = RowCodec.encode(item);
+        if (row.length > getMaxRowSize())
+            throw new IllegalArgumentException("Row too large for a page: " + item.getKey());
+        try
+        {
+            Long rid = (Long) directory.get(item.getKey());
+            if (rid != null && updateInPlace(rid.longValue(), row))
+                return;
+            long moved = insertRow(row);
+            if (rid != null)
+            {
+                // the new copy is on disk before the old one can leave it
+                if (moved >>> 16 != rid.longValue() >>> 16)
+                    pool.flushPage((int) (moved >>> 16));
+                deleteRow(rid.longValue());
+            }
+            directory.put(item.getKey(), new Long(moved));
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Can't write " + file + ": " + e);
+        }
+    }
+
+    public synchronized void remove(Object key)
+    {
+        Long rid = (Long) directory.remove(key);
+        if (rid == null)
+            return;
+        try
+        {
+            deleteRow(rid.longValue());
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Can't write " + file + ": " + e);
+        }
+    }
+
+    protected boolean updateInPlace(long rid, byte[] row) throws IOException
+    {
+        int page = (int) (rid >>> 16);
+        int slot = (int) (rid & 0xffff);
+        byte[] data = pool.getPage(page);
+        int entry = PAGE_HEADER + slot * SLOT_ENTRY;
+        int len = getShort(data, entry + 2);
+        if (ROW_HEADER + row.length > len)
+            return false;
+        System.arraycopy(row, 0, data, getShort(data, entry) + ROW_HEADER, row.length);
+        putShort(data, entry + 2, ROW_HEADER + row.length);
+        freeSpace[page] += len - ROW_HEADER - row.length;
+        pool.markDirty(page);
+        return true;
+    }
+
+    protected void deleteRow(long rid) throws IOException
+    {
+        int page = (int) (rid >>> 16);
+        int slot = (int) (rid & 0xffff);
+        byte[] data = pool.getPage(page);
+        int entry = PAGE_HEADER + slot * SLOT_ENTRY;
+        freeSpace[page] += getShort(data, entry + 2);
+        putShort(data, entry + 2, 0);
+        pool.markDirty(page);
+    }
+
+    protected long insertRow(byte[] row) throws IOException
+    {
+        int size = ROW_HEADER + row.length;
+        int need = size + SLOT_ENTRY;
+        int page = -1;
+        for (int i = pageCount - 1; i >= 0; i--)
+        {
+            if (freeSpace[i] >= need)
+            {
+                page = i;
+                break;
+            }
+        }
+        byte[] data;
+        if (page == -1)
+        {
+            page = pageCount++;
+            ensureFreeSpaceCapacity(pageCount);
+            data = pool.newPage(page);
+            putShort(data, 2, PAGE_SIZE);
+            freeSpace[page] = PAGE_SIZE - PAGE_HEADER;
+        }
+        else
+        {
+            data = pool.getPage(page);
+        }
+
+        int slots = getShort(data, 0);
+        int slot = 0;
+        while (slot < slots && getShort(data, PAGE_HEADER + slot * SLOT_ENTRY + 2) != 0)
+            slot++;
+        int dirEnd = PAGE_HEADER + Math.max(slots, slot + 1) * SLOT_ENTRY;
+        if (getShort(data, 2) - dirEnd < size)
+            compact(data);
+
+        int freeEnd = getShort(data, 2) - size;
+        putLong(data, freeEnd, nextSeq++);
+        System.arraycopy(row, 0, data, freeEnd + ROW_HEADER, row.length);
+        putShort(data, 2, freeEnd);
+        putShort(data, PAGE_HEADER + slot * SLOT_ENTRY, freeEnd);
+        putShort(data, PAGE_HEADER + slot * SLOT_ENTRY + 2, size);
+        if (slot == slots)
+        {
+            putShort(data, 0, slots + 1);
+            freeSpace[page] -= SLOT_ENTRY;
+        }
+        freeSpace[page] -= size;
+        pool.markDirty(page);
+        return rid(page, slot);
+    }
+
+    /**
+     * Moves the live rows of a page to its end so that the space left by
+     * deleted and shrunk rows becomes contiguous. Slot numbers are kept.
+     */
+    protected void compact(byte[] data)
+    {
+        byte[] copy = (byte[]) data.clone();
+        int slots = getShort(data, 0);
+        int freeEnd = PAGE_SIZE;
+        for (int slot = 0; slot < slots; slot++)
+        {
+            int entry = PAGE_HEADER + slot * SLOT_ENTRY;
+            int len = getShort(copy, entry + 2);
+            if (len == 0)
+                continue;
+            freeEnd -= len;
+            System.arraycopy(copy, getShort(copy, entry), data, freeEnd, len);
+            putShort(data, entry, freeEnd);
+        }
+        putShort(data, 2, freeEnd);
+    }
+
+    public synchronized Iterator keys()
+    {
+        return new ArrayList(directory.keySet()).iterator();
+    }
+
+    public synchronized int size()
+    {
+        return directory.size();
+    }
+
+    public int getMaxRowSize()
+    {
+        return PAGE_SIZE - PAGE_HEADER - SLOT_ENTRY - ROW_HEADER;
+    }
+
+    public synchronized boolean flush()
+    {
+        try
+        {
+            pool.flush();
+            return true;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    public synchronized void close()
+    {
+        flush();
+        try
+        {
+            channel.close();
+            raf.close();
+        }
+        catch (IOException e)
+        {
+        }
+    }
+}
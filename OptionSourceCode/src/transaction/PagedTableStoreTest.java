@@ -0,0 +1,161 @@
+package transaction;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Checks that a PagedTableStore keeps its rows across a reopen with a
+ * buffer pool much smaller than the table, that a row which outgrows its
+ * slot is moved and kept once, that a move cut short by a crash leaves only
+ * the newer copy, and that a partial page at the end of the file is
+ * ignored. Exits with status 1 if a check fails.
+ */
+class PagedTableStoreTest
+{
+    static File dir = new File(System.getProperty("java.io.tmpdir"), "PagedTableStoreTest");
+
+    static int failures = 0;
+
+    public static void main(String[] args) throws IOException
+    {
+        test1();
+        test2();
+        test3();
+        test4();
+        if (failures > 0)
+        {
+            System.out.println(failures + " check(s) FAILED");
+            System.exit(1);
+        }
+        System.out.println("ALL CHECKS PASSED");
+    }
+
+    static void check(boolean ok, String what)
+    {
+        System.out.println((ok ? "ok     " : "FAILED ") + what);
+        if (!ok)
+            failures++;
+    }
+
+    static File freshFile(String name)
+    {
+        dir.mkdirs();
+        File file = new File(dir, name);
+        file.delete();
+        return file;
+    }
+
+    static void test1() throws IOException
+    {
+        System.out.println("Reopen test");
+        File file = freshFile("reopen.pages");
+        // two frames for a table of dozens of pages: most reads evict
+        PagedTableStore store = new PagedTableStore(file, 2);
+        int n = 3000;
+        for (int i = 0; i < n; i++)
+            store.put(new Flight("F" + i, 100, 100 - i % 100, i));
+        for (int i = 0; i < n; i += 10)
+            store.remove("F" + i);
+        store.put(new Flight("F7", 100, 1, 777));
+        check(store.flush(), "flush");
+        store.close();
+
+        store = new PagedTableStore(file, 2);
+        check(store.size() == n - n / 10, "size after reopen is " + store.size());
+        boolean same = true;
+        for (int i = 0; i < n; i++)
+        {
+            Flight f = (Flight) store.get("F" + i);
+            if (i % 10 == 0)
+                same &= f == null;
+            else if (i == 7)
+                same &= f != null && f.getPrice() == 777 && f.getNumAvail() == 1;
+            else
+                same &= f != null && f.getPrice() == i && f.getNumAvail() == 100 - i % 100;
+        }
+        check(same, "every row reads back as last written");
+        Set keys = new HashSet();
+        for (Iterator iter = store.keys(); iter.hasNext();)
+            keys.add(iter.next());
+        check(keys.size() == n - n / 10 && !keys.contains("F10"), "keys() lists the live rows");
+        store.close();
+    }
+
+    static void test2() throws IOException
+    {
+        System.out.println("Relocation test");
+        File file = freshFile("move.pages");
+        PagedTableStore store = new PagedTableStore(file, 4);
+        // fill the first page, so that the grown row has to leave it
+        int i = 0;
+        while (store.pageCount < 2)
+            store.put(new Customer("C" + i++));
+        long before = ((Long) store.directory.get("C0")).longValue();
+        // same key, longer row: it no longer fits its slot
+        store.put(new Flight("C0", 10, 10, 10));
+        long after = ((Long) store.directory.get("C0")).longValue();
+        check(before >>> 16 != after >>> 16, "the grown row moved to another page");
+        check(store.size() == i, "the move keeps the row count");
+        store.close();
+
+        store = new PagedTableStore(file, 4);
+        check(store.get("C0") instanceof Flight, "the moved row reads back after reopen");
+        check(store.size() == i, "one copy of the moved row after reopen");
+        store.close();
+    }
+
+    static void test3() throws IOException
+    {
+        System.out.println("Interrupted move test");
+        File file = freshFile("crash.pages");
+        PagedTableStore store = new PagedTableStore(file, 1);
+        for (int i = 0; i < 300; i++)
+            store.put(new Flight("F" + i, 1, 1, 1));
+        // what a crash between writing the new copy and deleting the old
+        // one leaves behind: both copies, the new one on a later page
+        long rid = store.insertRow(RowCodec.encode(new Flight("F5", 9, 9, 9)));
+        check(rid >>> 16 != ((Long) store.directory.get("F5")).longValue() >>> 16, "the copies are on different pages");
+        store.flush();
+        store.close();
+
+        store = new PagedTableStore(file, 1);
+        Flight f = (Flight) store.get("F5");
+        check(f != null && f.getPrice() == 9, "the newer copy wins");
+        check(store.size() == 300, "size counts the row once");
+        store.remove("F5");
+        store.close();
+        store = new PagedTableStore(file, 1);
+        check(store.get("F5") == null && store.size() == 299, "removing it leaves no stale copy behind");
+        store.close();
+    }
+
+    static void test4() throws IOException
+    {
+        System.out.println("Torn tail test");
+        File file = freshFile("torn.pages");
+        PagedTableStore store = new PagedTableStore(file, 4);
+        for (int i = 0; i < 100; i++)
+            store.put(new Hotel("H" + i, 5, 5, 5));
+        store.close();
+        // a crash while a new page was being written leaves part of it
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[PagedTableStore.PAGE_SIZE / 3]);
+        out.close();
+
+        store = new PagedTableStore(file, 4);
+        check(store.size() == 100, "rows before the partial page survive");
+        for (int i = 100; i < 1000; i++)
+            store.put(new Hotel("H" + i, 5, 5, 5));
+        store.close();
+        store = new PagedTableStore(file, 4);
+        boolean all = store.size() == 1000;
+        for (int i = 0; i < 1000; i++)
+            all &= store.get("H" + i) != null;
+        check(all, "rows written after it survive a reopen");
+        store.close();
+    }
+}
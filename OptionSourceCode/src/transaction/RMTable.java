@@ -6,11 +6,22 @@
  */
 package transaction;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import lockmgr.DeadlockException;
 import lockmgr.LockManager;
@@ -23,14 +34,94 @@ import lockmgr.LockManager;
  */
 public class RMTable implements Serializable
 {
-    protected Hashtable table = new Hashtable();
+    /** The original class's, which tables already on disk carry. */
+    private static final long serialVersionUID = -521452304660345761L;
+
+    /**
+     * The serialized form is the original one, which held Hashtables, plus
+     * escrow; a table written before escrow existed reads with none.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("table", Hashtable.class),
+            new ObjectStreamField("locks", Hashtable.class),
+            new ObjectStreamField("tablename", String.class),
+            new ObjectStreamField("xid", Integer.TYPE),
+            new ObjectStreamField("escrow", Hashtable.class) };
+
+    protected ConcurrentHashMap table = new ConcurrentHashMap();
 
     transient protected RMTable parent;
 
-    protected Hashtable locks = new Hashtable();
+    protected ConcurrentHashMap locks = new ConcurrentHashMap();
 
     transient protected LockManager lm;
 
+    /** On-disk storage of a committed table; null keeps rows in table. */
+    transient protected TableStore store;
+
+    /**
+     * Secondary indexes of a committed table: indexName -> (indexVal -> Set of
+     * keys). An index is built on its first lookup and maintained by put and
+     * remove from then on.
+     */
+    transient volatile protected Hashtable indexes;
+
+    /**
+     * Older versions of committed rows for snapshot reads: key -> newest
+     * Version. Only rows changed since the oldest running snapshot have a
+     * chain; every other row's current version is visible to all snapshots.
+     */
+    transient volatile protected ConcurrentHashMap versions;
+
+    /*
+     * Optimistic concurrency control. A committed table counts the commits of
+     * each row and of each index value (rowVersions) and records which keys
+     * prepared transactions are about to write (claims). A transaction's table
+     * records the version of every key it has seen (readSet); null in a table
+     * recovered from disk, whose reads are lost.
+     */
+    transient protected ConcurrentHashMap rowVersions;
+
+    transient protected ConcurrentHashMap claims;
+
+    transient protected ConcurrentHashMap readSet = new ConcurrentHashMap();
+
+    /** The keys this transaction claimed when it was validated. */
+    transient protected Set claimed;
+
+    /**
+     * Escrowed changes of this transaction to the numAvail of committed
+     * InventoryItem rows: key -> int[] { units taken, units returned }.
+     * Applied to the committed rows at commit.
+     */
+    protected ConcurrentHashMap escrow = new ConcurrentHashMap();
+
+    /** Committed table: key -> EscrowAccount of the row's pending changes. */
+    transient protected ConcurrentHashMap escrowAccounts;
+
+    protected static class EscrowAccount
+    {
+        /** Units taken by uncommitted transactions. */
+        int pendingTaken;
+    }
+
+    protected static class Version
+    {
+        final long ts;
+
+        /** The row as of ts; null if it did not exist. */
+        final ResourceItem item;
+
+        volatile Version older;
+
+        Version(long ts, ResourceItem item, Version older)
+        {
+            this.ts = ts;
+            this.item = item;
+            this.older = older;
+        }
+    }
+
     protected String tablename;
 
     protected int xid;
@@ -43,6 +134,32 @@ public class RMTable implements Serializable
         this.lm = lm;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("table", new Hashtable(table));
+        fields.put("locks", new Hashtable(locks));
+        fields.put("tablename", tablename);
+        fields.put("xid", xid);
+        fields.put("escrow", new Hashtable(escrow));
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        ObjectInputStream.GetField fields = in.readFields();
+        table = copy((Map) fields.get("table", null));
+        locks = copy((Map) fields.get("locks", null));
+        tablename = (String) fields.get("tablename", null);
+        xid = fields.get("xid", 0);
+        escrow = copy((Map) fields.get("escrow", null));
+    }
+
+    private static ConcurrentHashMap copy(Map map)
+    {
+        return map == null ? new ConcurrentHashMap() : new ConcurrentHashMap(map);
+    }
+
     public void setLockManager(LockManager lm)
     {
         this.lm = lm;
@@ -53,6 +170,16 @@ public class RMTable implements Serializable
         this.parent = parent;
     }
 
+    public void setStore(TableStore store)
+    {
+        this.store = store;
+    }
+
+    public TableStore getStore()
+    {
+        return store;
+    }
+
     public String getTablename()
     {
         return tablename;
@@ -72,35 +199,725 @@ public class RMTable implements Serializable
     {
         if (!lm.lock(xid, tablename + ":" + key.toString(), lockType))
             throw new RuntimeException();
-        locks.put(key, new Integer(lockType));
+        // two different modes on one key add up to a WRITE lock
+        Integer held = (Integer) locks.get(key);
+        if (held == null)
+            locks.put(key, new Integer(lockType));
+        else if (held.intValue() != lockType)
+            locks.put(key, new Integer(LockManager.WRITE));
+    }
+
+    /**
+     * Locks the set of rows whose index indexName equals indexVal. The modes
+     * are inverted: a transaction that counts the set takes WRITE, and
+     * transactions adding or removing rows of the set take READ, so that
+     * writers of the same set don't block each other.
+     */
+    public void lockIndex(String indexName, Object indexVal, int lockType) throws DeadlockException
+    {
+        if (indexVal != null)
+            lock(indexKey(indexName, indexVal), lockType);
+    }
+
+    /** The key standing for the set of rows whose index indexName is indexVal. */
+    protected static String indexKey(String indexName, Object indexVal)
+    {
+        return "#" + indexName + "=" + indexVal;
+    }
+
+    /**
+     * Takes the index locks for the index values a row leaves or enters when
+     * oldItem is replaced with newItem; either may be null.
+     */
+    public void lockIndexes(ResourceItem oldItem, ResourceItem newItem) throws DeadlockException
+    {
+        ResourceItem item = newItem != null ? newItem : oldItem;
+        if (item == null)
+            return;
+        String[] names = item.getIndexNames();
+        for (int i = 0; i < names.length; i++)
+        {
+            try
+            {
+                Object oldVal = oldItem == null || oldItem.isDeleted() ? null : oldItem.getIndex(names[i]);
+                Object newVal = newItem == null || newItem.isDeleted() ? null : newItem.getIndex(names[i]);
+                if (oldVal != null && oldVal.equals(newVal))
+                    continue;
+                lockIndex(names[i], oldVal, LockManager.READ);
+                lockIndex(names[i], newVal, LockManager.READ);
+            }
+            catch (InvalidIndexException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
     }
 
     public ResourceItem get(Object key)
     {
+        if (store != null)
+            return store.get(key);
         ResourceItem item = (ResourceItem) table.get(key);
         if (item == null && parent != null)
+        {
             item = parent.get(key);
+            int[] units = escrow == null ? null : (int[]) escrow.get(key);
+            if (units != null && item != null)
+            {
+                // show this transaction its own escrowed changes
+                InventoryItem adjusted = (InventoryItem) item.clone();
+                adjusted.setNumAvail(adjusted.getNumAvail() - units[0] + units[1]);
+                item = adjusted;
+            }
+        }
         return item;
     }
 
+    public boolean hasOwnRow(Object key)
+    {
+        return table.containsKey(key);
+    }
+
     public void put(ResourceItem item)
     {
-        table.put(item.getKey(), item);
+        if (xid != -1)
+        {
+            dropEscrow(item.getKey());
+            putRow(item);
+            return;
+        }
+        // the row and its index entries change together: an index being
+        // built sees the new row only once its entries are in place
+        synchronized (getIndexes())
+        {
+            reindex(item.getKey(), item);
+            putRow(item);
+        }
     }
 
     public void remove(ResourceItem item)
     {
-        table.remove(item.getKey());
+        if (xid != -1)
+        {
+            dropEscrow(item.getKey());
+            removeRow(item.getKey());
+            return;
+        }
+        synchronized (getIndexes())
+        {
+            reindex(item.getKey(), null);
+            removeRow(item.getKey());
+        }
+    }
+
+    protected void putRow(ResourceItem item)
+    {
+        if (store != null)
+            store.put(item);
+        else
+            table.put(item.getKey(), item);
+    }
+
+    protected void removeRow(Object key)
+    {
+        if (store != null)
+            store.remove(key);
+        else
+            table.remove(key);
+    }
+
+    protected EscrowAccount getEscrowAccount(Object key)
+    {
+        if (escrowAccounts == null)
+        {
+            synchronized (this)
+            {
+                if (escrowAccounts == null)
+                    escrowAccounts = new ConcurrentHashMap();
+            }
+        }
+        EscrowAccount account = (EscrowAccount) escrowAccounts.get(key);
+        if (account == null)
+        {
+            escrowAccounts.putIfAbsent(key, new EscrowAccount());
+            account = (EscrowAccount) escrowAccounts.get(key);
+        }
+        return account;
+    }
+
+    /**
+     * Changes the numAvail of the committed row key by delta on behalf of
+     * this transaction. Fails if the units might not be there: if numAvail
+     * minus all units taken by uncommitted transactions is less than -delta.
+     * Escrowed changes commute, so the caller needs only an INCREMENT lock
+     * on the row, shared with the other escrow holders only.
+     *
+     * @return false if the row doesn't exist or too few units are left.
+     */
+    public boolean escrow(Object key, int delta)
+    {
+        EscrowAccount account = parent.getEscrowAccount(key);
+        synchronized (account)
+        {
+            InventoryItem item = (InventoryItem) parent.get(key);
+            if (item == null || item.isDeleted())
+                return false;
+            if (delta < 0 && item.getNumAvail() - account.pendingTaken + delta < 0)
+                return false;
+            int[] units = (int[]) escrow.get(key);
+            units = units == null ? new int[2] : (int[]) units.clone();
+            if (delta < 0)
+            {
+                units[0] -= delta;
+                account.pendingTaken -= delta;
+            }
+            else
+            {
+                // returned units count only once committed
+                units[1] += delta;
+            }
+            escrow.put(key, units);
+        }
+        return true;
+    }
+
+    /**
+     * Writing the row itself replaces the escrowed change: the written row
+     * was computed from get(), which already includes it.
+     */
+    protected void dropEscrow(Object key)
+    {
+        if (escrow == null || !escrow.containsKey(key))
+            return;
+        EscrowAccount account = parent.getEscrowAccount(key);
+        synchronized (account)
+        {
+            int[] units = (int[]) escrow.remove(key);
+            if (units != null)
+                account.pendingTaken -= units[0];
+        }
+    }
+
+    /**
+     * Replaces this transaction's escrowed changes with rows of its own
+     * holding the numAvail they result in, so that committing them twice
+     * (a redo after a crash) does no harm. The units taken stay pending
+     * until releaseTaken, once the rows are committed.
+     * <p>
+     * The caller must keep other escrow commits of the committed table out
+     * until these rows are durable there.
+     *
+     * @return key -> Integer units taken, for releaseTaken.
+     */
+    public Map escrowToRows()
+    {
+        Map taken = new HashMap();
+        if (escrow == null)
+            return taken;
+        for (Iterator iter = new ArrayList(escrow.keySet()).iterator(); iter.hasNext();)
+        {
+            Object key = iter.next();
+            EscrowAccount account = parent.getEscrowAccount(key);
+            synchronized (account)
+            {
+                int[] units = (int[]) escrow.remove(key);
+                InventoryItem item = (InventoryItem) parent.get(key);
+                if (item != null && !item.isDeleted())
+                {
+                    item = (InventoryItem) item.clone();
+                    item.setNumAvail(item.getNumAvail() - units[0] + units[1]);
+                    table.put(key, item);
+                }
+                taken.put(key, new Integer(units[0]));
+            }
+        }
+        return taken;
+    }
+
+    /** Stops counting the units escrowToRows found taken as pending. */
+    public void releaseTaken(Map taken)
+    {
+        for (Iterator iter = taken.entrySet().iterator(); iter.hasNext();)
+        {
+            Map.Entry entry = (Map.Entry) iter.next();
+            EscrowAccount account = parent.getEscrowAccount(entry.getKey());
+            synchronized (account)
+            {
+                account.pendingTaken -= ((Integer) entry.getValue()).intValue();
+            }
+        }
+    }
+
+    public boolean hasEscrow()
+    {
+        return escrow != null && !escrow.isEmpty();
+    }
+
+    public void abortEscrow()
+    {
+        if (escrow == null)
+            return;
+        for (Iterator iter = new ArrayList(escrow.keySet()).iterator(); iter.hasNext();)
+            dropEscrow(iter.next());
+    }
+
+    /**
+     * Re-enters the escrowed changes of a table recovered from disk into
+     * the committed table's accounts.
+     */
+    public void restoreEscrow()
+    {
+        if (escrow == null)
+            return;
+        for (Iterator iter = escrow.entrySet().iterator(); iter.hasNext();)
+        {
+            Map.Entry entry = (Map.Entry) iter.next();
+            int[] units = (int[]) entry.getValue();
+            EscrowAccount account = parent.getEscrowAccount(entry.getKey());
+            synchronized (account)
+            {
+                account.pendingTaken += units[0];
+            }
+        }
+    }
+
+    /**
+     * Makes this committed table keep the row versions and claims used by
+     * optimistic transactions.
+     */
+    public synchronized void trackRowVersions()
+    {
+        if (rowVersions == null)
+        {
+            claims = new ConcurrentHashMap();
+            rowVersions = new ConcurrentHashMap();
+        }
+    }
+
+    protected long getRowVersion(Object key)
+    {
+        Long v = (Long) rowVersions.get(key);
+        return v == null ? 0 : v.longValue();
+    }
+
+    protected void bumpRowVersion(Object key)
+    {
+        rowVersions.put(key, new Long(getRowVersion(key) + 1));
+    }
+
+    /**
+     * Records the committed version of key (a row key or an indexKey) the
+     * first time this optimistic transaction reads or writes it. Call before
+     * reading the row, so that a commit in between fails validation.
+     */
+    public void recordRead(Object key)
+    {
+        if (!readSet.containsKey(key))
+            readSet.putIfAbsent(key, new Long(parent.getRowVersion(key)));
+    }
+
+    public void recordIndexRead(String indexName, Object indexVal)
+    {
+        recordRead(indexKey(indexName, indexVal));
+    }
+
+    /**
+     * Backward validation of an optimistic transaction: fails if a key it
+     * has seen was committed since, or is claimed by another prepared
+     * transaction, or if a key it writes is claimed. On success claims the
+     * written keys. The caller serializes validations.
+     */
+    public boolean validateAndClaim()
+    {
+        if (readSet == null)
+            return false;
+        for (Iterator iter = readSet.entrySet().iterator(); iter.hasNext();)
+        {
+            Map.Entry entry = (Map.Entry) iter.next();
+            if (parent.getRowVersion(entry.getKey()) != ((Long) entry.getValue()).longValue())
+                return false;
+            if (isClaimedByOther(entry.getKey()))
+                return false;
+        }
+        Set writes = writeKeys();
+        for (Iterator iter = writes.iterator(); iter.hasNext();)
+        {
+            if (isClaimedByOther(iter.next()))
+                return false;
+        }
+        Integer owner = new Integer(xid);
+        for (Iterator iter = writes.iterator(); iter.hasNext();)
+            parent.claims.put(iter.next(), owner);
+        claimed = writes;
+        return true;
+    }
+
+    protected boolean isClaimedByOther(Object key)
+    {
+        Integer owner = (Integer) parent.claims.get(key);
+        return owner != null && owner.intValue() != xid;
+    }
+
+    /**
+     * @return the keys of the rows this transaction writes and the
+     *         indexKeys of the index values those rows leave or enter.
+     */
+    protected Set writeKeys()
+    {
+        Set keys = new HashSet();
+        for (Iterator iter = table.values().iterator(); iter.hasNext();)
+        {
+            ResourceItem item = (ResourceItem) iter.next();
+            keys.add(item.getKey());
+            addIndexKeys(keys, parent.get(item.getKey()));
+            addIndexKeys(keys, item);
+        }
+        return keys;
+    }
+
+    protected static void addIndexKeys(Set keys, ResourceItem item)
+    {
+        if (item == null || item.isDeleted())
+            return;
+        String[] names = item.getIndexNames();
+        for (int i = 0; i < names.length; i++)
+        {
+            try
+            {
+                keys.add(indexKey(names[i], item.getIndex(names[i])));
+            }
+            catch (InvalidIndexException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    public void releaseClaims()
+    {
+        if (claimed == null)
+            return;
+        Integer owner = new Integer(xid);
+        for (Iterator iter = claimed.iterator(); iter.hasNext();)
+            parent.claims.remove(iter.next(), owner);
+        claimed = null;
+    }
+
+    protected ConcurrentHashMap getVersions()
+    {
+        if (versions == null)
+        {
+            synchronized (this)
+            {
+                if (versions == null)
+                    versions = new ConcurrentHashMap();
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Applies a committed change to this (committed) table as of commit
+     * timestamp commitTs. The new version is chained in before the row is
+     * replaced, so snapshots older than commitTs keep seeing the old row.
+     */
+    public void commitRow(ResourceItem item, long commitTs)
+    {
+        ConcurrentHashMap versions = getVersions();
+        Object key = item.getKey();
+        ResourceItem old;
+        synchronized (versions)
+        {
+            Version head = (Version) versions.get(key);
+            old = head == null ? get(key) : head.item;
+            if (head == null)
+                head = new Version(0, old, null);
+            versions.put(key, new Version(commitTs, item.isDeleted() ? null : item, head));
+        }
+        if (item.isDeleted())
+            remove(item);
+        else
+            put(item);
+        if (rowVersions != null)
+        {
+            // after the row changes: a reader that recorded the old version
+            // may have read either row, and fails validation
+            Set keys = new HashSet();
+            keys.add(key);
+            addIndexKeys(keys, old);
+            addIndexKeys(keys, item);
+            for (Iterator iter = keys.iterator(); iter.hasNext();)
+                bumpRowVersion(iter.next());
+        }
+    }
+
+    /**
+     * @return the committed row as of snapshot timestamp ts, or null.
+     */
+    public ResourceItem getVersion(Object key, long ts)
+    {
+        ConcurrentHashMap versions = getVersions();
+        Version v = (Version) versions.get(key);
+        if (v == null)
+        {
+            ResourceItem item = get(key);
+            // a commit may have chained a newer version in meanwhile
+            v = (Version) versions.get(key);
+            if (v == null)
+                return item;
+        }
+        while (v != null && v.ts > ts)
+            v = v.older;
+        return v == null ? null : v.item;
+    }
+
+    /**
+     * @return the keys of all rows some snapshot may see.
+     */
+    public Set snapshotKeys()
+    {
+        Set keys = new HashSet(getVersions().keySet());
+        for (Iterator iter = keys(); iter.hasNext();)
+            keys.add(iter.next());
+        return keys;
+    }
+
+    /**
+     * @return the keys of the rows whose index indexName may have equalled
+     *         indexVal in some snapshot.
+     */
+    public Set snapshotIndexLookup(String indexName, Object indexVal) throws InvalidIndexException
+    {
+        Set keys = committedLookup(indexName, indexVal);
+        keys.addAll(getVersions().keySet());
+        return keys;
+    }
+
+    public boolean hasVersions()
+    {
+        return versions != null && !versions.isEmpty();
+    }
+
+    /**
+     * Drops the versions no snapshot at or after horizon can read. A chain
+     * whose newest version is visible at horizon is dropped entirely.
+     */
+    public void collectVersions(long horizon)
+    {
+        ConcurrentHashMap versions = getVersions();
+        synchronized (versions)
+        {
+            for (Iterator iter = versions.values().iterator(); iter.hasNext();)
+            {
+                Version head = (Version) iter.next();
+                Version v = head;
+                while (v != null && v.ts > horizon)
+                    v = v.older;
+                if (v == head)
+                    iter.remove();
+                else if (v != null)
+                    v.older = null;
+            }
+        }
+    }
+
+    protected Hashtable getIndexes()
+    {
+        if (indexes == null)
+        {
+            synchronized (this)
+            {
+                if (indexes == null)
+                    indexes = new Hashtable();
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Moves a committed row's key from the index entries of its current
+     * version to those of newItem, which is null for a removal. The caller
+     * holds the indexes monitor across this and the row change.
+     */
+    protected void reindex(Object key, ResourceItem newItem)
+    {
+        Hashtable indexes = getIndexes();
+        synchronized (indexes)
+        {
+            if (indexes.isEmpty())
+                return;
+            ResourceItem oldItem = get(key);
+            for (Iterator iter = indexes.entrySet().iterator(); iter.hasNext();)
+            {
+                Map.Entry entry = (Map.Entry) iter.next();
+                String indexName = (String) entry.getKey();
+                Hashtable index = (Hashtable) entry.getValue();
+                try
+                {
+                    if (oldItem != null)
+                    {
+                        Object val = oldItem.getIndex(indexName);
+                        Set keys = val == null ? null : (Set) index.get(val);
+                        if (keys != null)
+                        {
+                            keys.remove(key);
+                            if (keys.isEmpty())
+                                index.remove(val);
+                        }
+                    }
+                    if (newItem != null && !newItem.isDeleted())
+                        addToIndex(index, newItem.getKey(), newItem.getIndex(indexName));
+                }
+                catch (InvalidIndexException e)
+                {
+                    // the index was built, so every row declares it
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    protected static void addToIndex(Hashtable index, Object key, Object val)
+    {
+        if (val == null)
+            return;
+        Set keys = (Set) index.get(val);
+        if (keys == null)
+        {
+            keys = new HashSet();
+            index.put(val, keys);
+        }
+        keys.add(key);
+    }
+
+    /**
+     * Returns the keys of the committed rows whose index indexName equals
+     * indexVal, building the index with one scan if this is its first use.
+     */
+    protected Set committedLookup(String indexName, Object indexVal) throws InvalidIndexException
+    {
+        Hashtable indexes = getIndexes();
+        synchronized (indexes)
+        {
+            Hashtable index = (Hashtable) indexes.get(indexName);
+            if (index == null)
+            {
+                index = new Hashtable();
+                for (Iterator iter = keys(); iter.hasNext();)
+                {
+                    Object key = iter.next();
+                    ResourceItem item = get(key);
+                    if (item != null && !item.isDeleted())
+                        addToIndex(index, key, item.getIndex(indexName));
+                }
+                indexes.put(indexName, index);
+            }
+            Set keys = (Set) index.get(indexVal);
+            return keys == null ? new HashSet() : new HashSet(keys);
+        }
+    }
+
+    /**
+     * Returns the keys of the rows this table sees whose index indexName may
+     * equal indexVal: the committed matches, overlaid with this
+     * transaction's own inserts, updates and deletes. Callers still check
+     * each row, as a committed match may since have changed.
+     */
+    public Set indexLookup(String indexName, Object indexVal) throws InvalidIndexException
+    {
+        if (parent == null)
+            return committedLookup(indexName, indexVal);
+        Set keys = parent.committedLookup(indexName, indexVal);
+        for (Iterator iter = table.values().iterator(); iter.hasNext();)
+        {
+            ResourceItem item = (ResourceItem) iter.next();
+            if (!item.isDeleted() && indexVal.equals(item.getIndex(indexName)))
+                keys.add(item.getKey());
+            else
+                keys.remove(item.getKey());
+        }
+        return keys;
+    }
+
+    /**
+     * Iterates over the keys of the rows this table sees without copying
+     * either table: first this table's own live rows, then the parent's keys
+     * that this table does not shadow. Rows committed to the parent during
+     * the iteration may or may not be returned.
+     */
+    public Iterator keys()
+    {
+        if (store != null)
+            return store.keys();
+        return new MergedKeyIterator();
+    }
+
+    protected class MergedKeyIterator implements Iterator
+    {
+        protected Enumeration own = table.keys();
+
+        protected Iterator inherited;
+
+        protected Object next;
+
+        public boolean hasNext()
+        {
+            while (next == null)
+            {
+                if (own.hasMoreElements())
+                {
+                    Object key = own.nextElement();
+                    ResourceItem item = (ResourceItem) table.get(key);
+                    if (item != null && !item.isDeleted())
+                        next = key;
+                }
+                else if (parent == null)
+                {
+                    return false;
+                }
+                else
+                {
+                    if (inherited == null)
+                        inherited = parent.keys();
+                    if (!inherited.hasNext())
+                        return false;
+                    Object key = inherited.next();
+                    if (!table.containsKey(key))
+                        next = key;
+                }
+            }
+            return true;
+        }
+
+        public Object next()
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Object key = next;
+            next = null;
+            return key;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
     }
 
-    public Set keySet()
+    /**
+     * @return the rows held by this table itself, without the parent's.
+     */
+    public Collection values()
     {
-        Hashtable t=new Hashtable();
-        if (parent != null)
+        if (store == null)
+            return new ArrayList(table.values());
+        Collection result = new ArrayList();
+        for (Iterator iter = store.keys(); iter.hasNext();)
         {
-            t.putAll(parent.table);
+            ResourceItem item = store.get(iter.next());
+            if (item != null)
+                result.add(item);
         }
-        t.putAll(table);
-        return t.keySet();
+        return result;
     }
 }
\ No newline at end of file
@@ -15,8 +15,13 @@ import java.io.Serializable;
  * Preferences - Java - Code Style - Code Templates
  */
 public class Reservation implements ResourceItem, Serializable {
+	private static final long serialVersionUID = -1809578709741579076L;
+
 	public static final String INDEX_CUSTNAME = "custName";
 
+	/** Index on the reserved resource, with values from resourceIndex(). */
+	public static final String INDEX_RESOURCE = "resource";
+
 	public static final int RESERVATION_TYPE_FLIGHT = 1;
 
 	public static final int RESERVATION_TYPE_HOTEL = 2;
@@ -48,10 +53,20 @@ public class Reservation implements ResourceItem, Serializable {
 	public Object getIndex(String indexName) throws InvalidIndexException {
 		if (indexName.equals(INDEX_CUSTNAME))
 			return custName;
+		else if (indexName.equals(INDEX_RESOURCE))
+			return resourceIndex(resvType, resvKey);
 		else
 			throw new InvalidIndexException(indexName);
 	}
 
+	public String[] getIndexNames() {
+		return new String[] { INDEX_CUSTNAME, INDEX_RESOURCE };
+	}
+
+	public static String resourceIndex(int resvType, String resvKey) {
+		return resvType + ":" + resvKey;
+	}
+
 	public Object getKey() {
 		return new ReservationKey(custName, resvType, resvKey);
 	}
@@ -21,6 +21,9 @@ public interface ResourceItem extends Cloneable, Serializable {
 
 	public Object getIndex(String indexName) throws InvalidIndexException;
 
+	/** The names accepted by getIndex. */
+	public String[] getIndexNames();
+
 	public Object getKey();
 
 	public boolean isDeleted();
@@ -3,6 +3,7 @@ package transaction;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 
 import lockmgr.DeadlockException;
@@ -45,10 +46,88 @@ public interface ResourceManager extends Remote {
 			Object indexVal) throws DeadlockException,
 			InvalidTransactionException, InvalidIndexException, RemoteException;
 
+	/**
+	 * Opens a cursor over the rows of tablename as query(xid, tablename)
+	 * would return them. The rows are read, and read-locked, as they are
+	 * fetched. The cursor is closed when xid ends.
+	 * 
+	 * @return the cursor id, to pass to fetch and closeScan.
+	 */
+	public int openScan(int xid, String tablename) throws DeadlockException,
+			InvalidTransactionException, RemoteException;
+
+	/**
+	 * Opens a cursor over the rows whose index indexName equals indexVal.
+	 */
+	public int openScan(int xid, String tablename, String indexName,
+			Object indexVal) throws DeadlockException,
+			InvalidTransactionException, InvalidIndexException, RemoteException;
+
+	/**
+	 * @return the next rows of the cursor, at most max of them; fewer than
+	 *         max only once the scan is exhausted.
+	 */
+	public List fetch(int xid, int cursor, int max) throws DeadlockException,
+			InvalidTransactionException, RemoteException;
+
+	public void closeScan(int xid, int cursor) throws RemoteException;
+
+	/**
+	 * Counts the rows whose index indexName equals indexVal, and keeps rows
+	 * from entering or leaving that set until xid ends.
+	 */
+	public int countReferences(int xid, String tablename, String indexName,
+			Object indexVal) throws DeadlockException,
+			InvalidTransactionException, InvalidIndexException, RemoteException;
+
+	public ResourceItem querySnapshot(long ts, String tablename, Object key)
+			throws RemoteException;
+
+	public Collection querySnapshot(long ts, String tablename)
+			throws RemoteException;
+
+	public Collection querySnapshot(long ts, String tablename,
+			String indexName, Object indexVal) throws InvalidIndexException,
+			RemoteException;
+
 	public boolean update(int xid, String tablename, Object key,
 			ResourceItem newItem) throws DeadlockException,
 			InvalidTransactionException, RemoteException;
 
+	/**
+	 * Adds delta (negative to take units) to the numAvail of the
+	 * InventoryItem row key. Concurrent adjustments of the same row commute
+	 * and don't block each other.
+	 * 
+	 * @return false if the row doesn't exist or fewer than -delta units
+	 *         are certainly left.
+	 */
+	public boolean adjustAvail(int xid, String tablename, Object key,
+			int delta) throws DeadlockException, InvalidTransactionException,
+			RemoteException;
+
+	/**
+	 * Takes amount units from the numAvail of the InventoryItem row key if
+	 * that many are available, as adjustAvail does, in a single call.
+	 * 
+	 * @return the row as seen by xid after the decrement, or null if it
+	 *         doesn't exist or has fewer than amount units left.
+	 */
+	public ResourceItem decrementIfAvailable(int xid, String tablename,
+			Object key, int amount) throws DeadlockException,
+			InvalidTransactionException, RemoteException;
+
+	/**
+	 * Applies a list of Operations in order, as one call: the transaction
+	 * is enlisted once and each changed table is written to disk once.
+	 * 
+	 * @return one result per operation, of the type given by the
+	 *         Operation factory method that built it.
+	 */
+	public List execute(int xid, List operations) throws DeadlockException,
+			InvalidTransactionException, InvalidIndexException,
+			RemoteException;
+
 	public boolean insert(int xid, String tablename, ResourceItem newItem)
 			throws DeadlockException, InvalidTransactionException,
 			RemoteException;
@@ -61,15 +140,56 @@ public interface ResourceManager extends Remote {
 			Object indexVal) throws DeadlockException,
 			InvalidTransactionException, InvalidIndexException, RemoteException;
 
-	public boolean prepare(int xid) throws InvalidTransactionException,
+	/**
+	 * @return VOTE_COMMIT, VOTE_READ_ONLY if xid made no changes here (the
+	 *         RM then needs no commit or abort for it), or VOTE_ABORT.
+	 */
+	public int prepare(int xid) throws InvalidTransactionException,
 			RemoteException;
 
 	public void commit(int xid) throws InvalidTransactionException,
 			RemoteException;
 
+	/**
+	 * Commits xid, stamping its changes with commit timestamp commitTs for
+	 * snapshot reads.
+	 */
+	public void commit(int xid, long commitTs)
+			throws InvalidTransactionException, RemoteException;
+
+	/**
+	 * Prepares and commits xid in one call, for a transaction that has no
+	 * other participant.
+	 * 
+	 * @return false if xid could not be prepared; it is then aborted.
+	 */
+	public boolean commitOnePhase(int xid, long commitTs)
+			throws InvalidTransactionException, RemoteException;
+
+	/**
+	 * Tells a TM that lost the reply to commitOnePhase what became of xid.
+	 * 
+	 * @return the commit timestamp if xid committed,
+	 *         TransactionManager.OUTCOME_ABORTED if it aborted, or
+	 *         TransactionManager.OUTCOME_ACTIVE if it is not decided yet.
+	 */
+	public long getOnePhaseOutcome(int xid) throws RemoteException;
+
 	public void abort(int xid) throws InvalidTransactionException,
 			RemoteException;
 
+	/**
+	 * @return ms since xid last used this RM, or Long.MAX_VALUE if this RM
+	 *         holds nothing for it.
+	 */
+	public long getIdleTime(int xid) throws RemoteException;
+
+	public static final int VOTE_ABORT = 0;
+
+	public static final int VOTE_COMMIT = 1;
+
+	public static final int VOTE_READ_ONLY = 2;
+
 	/** The RMI names a ResourceManager binds to. */
 	public static final String RMINameFlights = "RMFlights";
 
@@ -10,12 +10,22 @@ import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import lockmgr.DeadlockException;
 import lockmgr.LockManager;
@@ -30,9 +40,11 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
 {
     protected final static String TRANSACTION_LOG_FILENAME = "transactions.log";
 
+    protected TransactionLog txLog = null;
+
     public Set getTransactions()
     {
-        return xids;
+        return new HashSet(xids);
     }
 
     public Collection getUpdatedRows(int xid, String tablename)
@@ -44,13 +56,37 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
     public Collection getUpdatedRows(String tablename)
     {
         RMTable table = getTable(tablename);
-        return new ArrayList(table.table.values());
+        return table.values();
     }
 
     protected String myRMIName = null; // Used to distinguish this RM from other
 
     protected String dieTime;
 
+    /** Storage engine for committed tables: serial (whole-file), mmap, paged or lsm. */
+    protected final static String STORAGE_SERIAL = "serial";
+
+    protected final static String STORAGE_MMAP = "mmap";
+
+    protected final static String STORAGE_PAGED = "paged";
+
+    protected final static String STORAGE_LSM = "lsm";
+
+    protected String storageEngine = STORAGE_SERIAL;
+
+    /** Buffer pool size, in pages, of each table of the paged engine. */
+    protected int bufferPoolPages = 0;
+
+    /** Concurrency control: row locks (default) or optimistic validation. */
+    protected final static String CONCURRENCY_LOCKING = "locking";
+
+    protected final static String CONCURRENCY_OCC = "occ";
+
+    protected boolean optimistic = false;
+
+    /** Serializes the validation of optimistic transactions. */
+    protected final Object validationLock = new Object();
+
     public void setDieTime(String time) throws RemoteException
     {
         dieTime = time;
@@ -63,13 +99,14 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
     }
 
     // RMs
-    protected HashSet xids = new HashSet();
+    protected Set xids = ConcurrentHashMap.newKeySet();
 
     public ResourceManagerImpl(String rmiName) throws RemoteException
     {
         myRMIName = rmiName;
         dieTime = "NoDie";
 
+        loadConfig();
         recover();
 
         while (!reconnect())
@@ -83,7 +120,7 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             }
         }
 
-        new Thread()
+        new Thread(myRMIName + "-lease")
         {
             public void run()
             {
@@ -92,7 +129,7 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
                     try
                     {
                         if (tm != null)
-                            tm.ping();
+                            tm.renewLease(myRMIName, ResourceManagerImpl.this);
                     }
                     catch (Exception e)
                     {
@@ -105,9 +142,13 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
                         System.out.println("reconnect tm!");
 
                     }
+                    else
+                    {
+                        collectVersions();
+                    }
                     try
                     {
-                        Thread.sleep(500);
+                        Thread.sleep(leaseDuration / 3);
                     }
                     catch (InterruptedException e)
                     {
@@ -122,11 +163,36 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
     {
     }
 
+    /**
+     * Drops the row versions that no running or future snapshot can read.
+     */
+    protected void collectVersions()
+    {
+        Map committed = (Map) tables.get(new Integer(-1));
+        if (committed == null)
+            return;
+        boolean any = false;
+        for (Iterator iter = committed.values().iterator(); iter.hasNext();)
+            any |= ((RMTable) iter.next()).hasVersions();
+        if (!any)
+            return;
+        long horizon;
+        try
+        {
+            horizon = tm.getSnapshotHorizon();
+        }
+        catch (Exception e)
+        {
+            return;
+        }
+        for (Iterator iter = committed.values().iterator(); iter.hasNext();)
+            ((RMTable) iter.next()).collectVersions(horizon);
+    }
+
     public void recover()
     {
-        HashSet t_xids = loadTransactionLogs();
-        if (t_xids != null)
-            xids = t_xids;
+        xids.clear();
+        xids.addAll(loadTransactionLogs());
 
         File dataDir = new File("data");
         if (!dataDir.exists())
@@ -141,38 +207,148 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             {
                 continue;
             }
-            if (datas[i].getName().equals(TRANSACTION_LOG_FILENAME))
+            if (datas[i].getName().indexOf('.') >= 0)
             {
+                // transaction log and its compaction leftovers
                 continue;
             }
             getTable(datas[i].getName());
         }
 
         //xtable
+        List xidDirs = new ArrayList();
         for (int i = 0; i < datas.length; i++)
         {
             if (!datas[i].isDirectory())
                 continue;
-            File[] xdatas = datas[i].listFiles();
             int xid = Integer.parseInt(datas[i].getName());
             if (!xids.contains(new Integer(xid)))
             {
                 //this should never happen;
                 throw new RuntimeException("ERROR: UNEXPECTED XID");
             }
-            for (int j = 0; j < xdatas.length; j++)
+            xidDirs.add(new Integer(xid));
+        }
+        // the xids hold disjoint locks, so they reload independently
+        runParallel(xidDirs, new XidTask()
+        {
+            public void run(int xid) throws Exception
             {
-                RMTable xtable = getTable(xid, xdatas[j].getName());
-                try
+                File[] xdatas = new File("data/" + xid).listFiles();
+                for (int j = 0; j < xdatas.length; j++)
                 {
+                    RMTable xtable = getTable(xid, xdatas[j].getName());
                     xtable.relockAll();
+                    xtable.restoreEscrow();
+                }
+            }
+        });
+
+        // finish the one-phase commits decided here before the crash
+        final TransactionLog log = getTransactionLog();
+        List decided = new ArrayList();
+        for (Iterator iter = xids.iterator(); iter.hasNext();)
+        {
+            Integer xid = (Integer) iter.next();
+            if (log.getCommitTs(xid.intValue()) >= 0)
+                decided.add(xid);
+        }
+        runParallel(decided, new XidTask()
+        {
+            public void run(int xid) throws Exception
+            {
+                System.out.println(myRMIName + " Commit one-phase xid" + xid);
+                applyCommit(xid, log.getCommitTs(xid));
+            }
+        });
+        // the TM may be waiting to hear of them: keep them logged until it has
+        unreported.addAll(decided);
+    }
+
+    /**
+     * xids committed in one phase by recovery, still logged until the TM
+     * has been told.
+     */
+    protected Set unreported = ConcurrentHashMap.newKeySet();
+
+    /** Recovery work for one xid. */
+    protected interface XidTask
+    {
+        void run(int xid) throws Exception;
+    }
+
+    /**
+     * Runs task for every xid in xidList, on up to one thread per core, and
+     * waits for all of them.
+     *
+     * @throws RuntimeException if a task failed.
+     */
+    protected void runParallel(List xidList, final XidTask task)
+    {
+        if (xidList.isEmpty())
+            return;
+        int threads = Math.min(xidList.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List futures = new ArrayList();
+            for (Iterator iter = xidList.iterator(); iter.hasNext();)
+            {
+                final int xid = ((Integer) iter.next()).intValue();
+                futures.add(pool.submit(new Callable()
+                {
+                    public Object call() throws Exception
+                    {
+                        task.run(xid);
+                        return null;
+                    }
+                }));
+            }
+            for (Iterator iter = futures.iterator(); iter.hasNext();)
+            {
+                try
+                {
+                    ((Future) iter.next()).get();
+                }
+                catch (ExecutionException e)
+                {
+                    throw new RuntimeException(e.getCause());
                 }
-                catch (DeadlockException e)
+                catch (InterruptedException e)
                 {
                     throw new RuntimeException(e);
                 }
             }
         }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Reads the per-RM options (rm.&lt;rmiName&gt;.*) from conf/ddb.conf.
+     */
+    protected void loadConfig()
+    {
+        Properties prop = new Properties();
+        try
+        {
+            prop.load(new FileInputStream("conf/ddb.conf"));
+        }
+        catch (Exception e1)
+        {
+            e1.printStackTrace();
+            return;
+        }
+        String prefix = "rm." + myRMIName + ".";
+        storageEngine = prop.getProperty(prefix + "storage", STORAGE_SERIAL).trim();
+        String poolPages = prop.getProperty(prefix + "bufferPool.pages");
+        if (poolPages != null)
+            bufferPoolPages = Integer.parseInt(poolPages.trim());
+        optimistic = CONCURRENCY_OCC.equals(prop.getProperty(prefix + "concurrency", CONCURRENCY_LOCKING).trim());
+        System.out.println(myRMIName + " storage engine: " + storageEngine);
+        System.out.println(myRMIName + " concurrency control: " + (optimistic ? CONCURRENCY_OCC : CONCURRENCY_LOCKING));
     }
 
     public boolean reconnect()
@@ -200,15 +376,52 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         try
         {
             tm = (TransactionManager) Naming.lookup(rmiPort + TransactionManager.RMIName);
+            leaseDuration = tm.renewLease(myRMIName, this);
+            // a new TM may not know what the old one did
+            enlisted.clear();
             System.out.println(myRMIName + "'s xids is Empty ? " + xids.isEmpty());
-            for (Iterator iter = xids.iterator(); iter.hasNext();)
+            for (Iterator iter = new ArrayList(unreported).iterator(); iter.hasNext();)
             {
                 int xid = ((Integer) iter.next()).intValue();
-                System.out.println(myRMIName + " Re-enlist to TM with xid" + xid);
-                tm.enlist(xid, this);
-                if (dieTime.equals("AfterEnlist"))
-                    dieNow();
-                //                iter.remove();
+                tm.ackCommit(xid, myRMIName);
+                unreported.remove(new Integer(xid));
+                unregisterTransaction(xid);
+            }
+            List inDoubt = new ArrayList(xids);
+            if (!inDoubt.isEmpty())
+            {
+                // finish what the TM has decided, rejoin what is still
+                // running; the TM has enlisted us in those already
+                List outcomes = tm.resolveInDoubt(inDoubt, myRMIName, this);
+                final Map outcome = new HashMap();
+                for (int i = 0; i < inDoubt.size(); i++)
+                    outcome.put(inDoubt.get(i), outcomes.get(i));
+                final TransactionManager coordinator = tm;
+                runParallel(inDoubt, new XidTask()
+                {
+                    public void run(int xid) throws Exception
+                    {
+                        long ts = ((Long) outcome.get(new Integer(xid))).longValue();
+                        if (ts == TransactionManager.OUTCOME_ACTIVE)
+                        {
+                            System.out.println(myRMIName + " Re-enlist to TM with xid" + xid);
+                            enlisted.add(new Integer(xid));
+                            if (dieTime.equals("AfterEnlist"))
+                                dieNow();
+                        }
+                        else if (ts == TransactionManager.OUTCOME_ABORTED)
+                        {
+                            System.out.println(myRMIName + " Abort in-doubt xid" + xid);
+                            abort(xid);
+                        }
+                        else
+                        {
+                            System.out.println(myRMIName + " Commit in-doubt xid" + xid);
+                            commit(xid, ts);
+                            coordinator.ackCommit(xid, myRMIName);
+                        }
+                    }
+                });
             }
             System.out.println(myRMIName + " bound to TM");
         }
@@ -238,28 +451,72 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
 
     protected TransactionManager tm = null;
 
+    /** Lease duration granted by the TM, in ms; renewed every third of it. */
+    protected volatile long leaseDuration = 1500;
+
+    /**
+     * Returns the TM, reconnecting if it was lost. The TM is not pinged
+     * here: the lease thread and failed calls notice a lost TM.
+     */
     public TransactionManager getTransactionManager() throws TransactionManagerUnaccessibleException
     {
-        if (tm != null)
+        if (tm == null)
+        {
+            if (!reconnect())
+                tm = null;
+        }
+        if (tm == null)
+            throw new TransactionManagerUnaccessibleException();
+        else
+            return tm;
+    }
+
+    /** xids this RM has enlisted with the TM since it last connected. */
+    protected Set enlisted = ConcurrentHashMap.newKeySet();
+
+    /** xid -> time of its last operation here, for the TM's timeout reaper. */
+    protected Map lastUsed = new ConcurrentHashMap();
+
+    /** Notes that xid did something here, so the reaper leaves it alone. */
+    protected void touch(int xid)
+    {
+        lastUsed.put(new Integer(xid), new Long(System.currentTimeMillis()));
+    }
+
+    /**
+     * Enlists this RM in xid, once per xid.
+     */
+    protected void enlist(int xid) throws RemoteException
+    {
+        touch(xid);
+        if (enlisted.contains(new Integer(xid)))
+            return;
+        try
         {
             try
             {
-                tm.ping();
+                getTransactionManager().enlist(xid, this);
             }
             catch (RemoteException e)
             {
+                // a stale TM stub: reconnect and try once more
                 tm = null;
+                getTransactionManager().enlist(xid, this);
             }
         }
-        if (tm == null)
+        catch (TransactionManagerUnaccessibleException e)
         {
-            if (!reconnect())
-                tm = null;
+            throw new RemoteException(e.getLocalizedMessage(), e);
         }
-        if (tm == null)
-            throw new TransactionManagerUnaccessibleException();
-        else
-            return tm;
+        enlisted.add(new Integer(xid));
+    }
+
+    public long getIdleTime(int xid) throws RemoteException
+    {
+        Long last = (Long) lastUsed.get(new Integer(xid));
+        if (last == null)
+            return Long.MAX_VALUE;
+        return System.currentTimeMillis() - last.longValue();
     }
 
     protected LockManager lm = new LockManager();
@@ -269,7 +526,8 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         return lm;
     }
 
-    protected Hashtable tables = new Hashtable();
+    /** xid -> (tablename -> RMTable); the committed tables are under xid -1. */
+    protected ConcurrentHashMap tables = new ConcurrentHashMap();
 
     protected RMTable loadTable(File file)
     {
@@ -296,52 +554,73 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         }
     }
 
+    /**
+     * Writes a table to file. Callers must not hold a lock wait open: the
+     * table's monitor is held for the write so that two writers of the same
+     * table don't interleave their output.
+     */
     protected boolean storeTable(RMTable table, File file)
     {
         file.getParentFile().mkdirs();
         ObjectOutputStream oout = null;
-        try
-        {
-            oout = new ObjectOutputStream(new FileOutputStream(file));
-            oout.writeObject(table);
-            oout.flush();
-            return true;
-        }
-        catch (Exception e)
-        {
-            return false;
-        }
-        finally
+        synchronized (table)
         {
             try
             {
-                if (oout != null)
-                    oout.close();
+                oout = new ObjectOutputStream(new FileOutputStream(file));
+                oout.writeObject(table);
+                oout.flush();
+                return true;
             }
-            catch (IOException e1)
+            catch (Exception e)
+            {
+                return false;
+            }
+            finally
             {
+                try
+                {
+                    if (oout != null)
+                        oout.close();
+                }
+                catch (IOException e1)
+                {
+                }
             }
         }
     }
 
     protected RMTable getTable(int xid, String tablename)
     {
-        Hashtable xidtables = null;
-        synchronized (tables)
+        Integer xidKey = new Integer(xid);
+        ConcurrentHashMap xidtables = (ConcurrentHashMap) tables.get(xidKey);
+        if (xidtables == null)
         {
-            xidtables = (Hashtable) tables.get(new Integer(xid));
-            if (xidtables == null)
-            {
-                xidtables = new Hashtable();
-                tables.put(new Integer(xid), xidtables);
-            }
+            tables.putIfAbsent(xidKey, new ConcurrentHashMap());
+            xidtables = (ConcurrentHashMap) tables.get(xidKey);
         }
+        RMTable table = (RMTable) xidtables.get(tablename);
+        if (table != null)
+            return table;
+        // only loading a table that isn't open yet is serialized
         synchronized (xidtables)
         {
-            RMTable table = (RMTable) xidtables.get(tablename);
+            table = (RMTable) xidtables.get(tablename);
             if (table != null)
                 return table;
-            table = loadTable(new File("data/" + (xid == -1 ? "" : "" + xid + "/") + tablename));
+            if (xid == -1 && !STORAGE_SERIAL.equals(storageEngine))
+            {
+                table = openStoredTable(tablename);
+                if (optimistic)
+                    table.trackRowVersions();
+                xidtables.put(tablename, table);
+                return table;
+            }
+            File file = new File("data/" + (xid == -1 ? "" : "" + xid + "/") + tablename);
+            table = loadTable(file);
+            if (table == null && xid == -1 && file.exists())
+                // starting empty would overwrite it on the next commit
+                throw new RuntimeException("Can't read table " + file);
             if (table == null)
             {
                 if (xid == -1)
@@ -359,6 +638,8 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
                     table.setParent(getTable(tablename));
                 }
             }
+            if (xid == -1 && optimistic)
+                table.trackRowVersions();
             xidtables.put(tablename, table);
             return table;
         }
@@ -369,59 +650,118 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         return getTable(-1, tablename);
     }
 
-    protected HashSet loadTransactionLogs()
+    /**
+     * Locks a row for xid, or in optimistic mode records the version of the
+     * row xid is about to see.
+     */
+    protected void lockRow(RMTable table, Object key, int lockType) throws DeadlockException
     {
-        File xidLog = new File("data/transactions.log");
-        ObjectInputStream oin = null;
+        if (optimistic)
+            table.recordRead(key);
+        else
+            table.lock(key, lockType);
+    }
+
+    protected TableStore openStore(String tablename) throws IOException
+    {
+        if (STORAGE_MMAP.equals(storageEngine))
+            return new MappedTableStore(new File("data/" + tablename + ".mmap"));
+        if (STORAGE_PAGED.equals(storageEngine))
+            return new PagedTableStore(new File("data/" + tablename + ".pages"), bufferPoolPages);
+        if (STORAGE_LSM.equals(storageEngine))
+            return new LsmTableStore(new File("data"), tablename + ".lsm");
+        throw new IOException("Unknown storage engine: " + storageEngine);
+    }
+
+    /**
+     * Opens a committed table backed by the configured TableStore. A table
+     * previously written by the serial engine is imported on first open.
+     */
+    protected RMTable openStoredTable(String tablename)
+    {
+        RMTable table = new RMTable(tablename, null, -1, lm);
         try
         {
-            oin = new ObjectInputStream(new FileInputStream(xidLog));
-            return (HashSet) oin.readObject();
+            table.setStore(openStore(tablename));
         }
-        catch (Exception e)
+        catch (IOException e)
         {
-            return null;
+            throw new RuntimeException("Can't open table " + tablename + ": " + e);
         }
-        finally
+        File serialFile = new File("data/" + tablename);
+        if (table.getStore().size() == 0 && serialFile.exists())
         {
-            try
-            {
-                if (oin != null)
-                    oin.close();
-            }
-            catch (IOException e1)
-            {
-            }
+            RMTable old = loadTable(serialFile);
+            if (old == null)
+                throw new RuntimeException("Can't import table " + tablename + ": unreadable " + serialFile);
+            for (Iterator iter = old.table.values().iterator(); iter.hasNext();)
+                table.put((ResourceItem) iter.next());
+            if (!table.getStore().flush())
+                throw new RuntimeException("Can't import table " + tablename);
+            // only once the rows are safe in the store
+            serialFile.delete();
         }
+        return table;
     }
 
-    protected boolean storeTransactionLogs(HashSet xids)
+    /**
+     * Makes the committed version of a table durable.
+     */
+    protected boolean storeCommittedTable(RMTable table)
     {
-        File xidLog = new File("data/transactions.log");
-        xidLog.getParentFile().mkdirs();
-        xidLog.getParentFile().mkdirs();
-        ObjectOutputStream oout = null;
-        try
+        if (table.getStore() != null)
+            return table.getStore().flush();
+        return storeTable(table, new File("data/" + table.getTablename()));
+    }
+
+    protected TransactionLog getTransactionLog()
+    {
+        if (txLog == null)
         {
-            oout = new ObjectOutputStream(new FileOutputStream(xidLog));
-            oout.writeObject(xids);
-            oout.flush();
-            return true;
+            String filename = myRMIName == null ? TRANSACTION_LOG_FILENAME : myRMIName + "." + TRANSACTION_LOG_FILENAME;
+            txLog = new TransactionLog(new File("data/" + filename));
         }
-        catch (Exception e)
+        return txLog;
+    }
+
+    protected HashSet loadTransactionLogs()
+    {
+        return getTransactionLog().replay();
+    }
+
+    /**
+     * Records that xid is active in this RM. Only the first call for an xid
+     * touches the disk. Only writes call this: a transaction that has just
+     * read here leaves nothing to recover, so reads merely enlist.
+     * 
+     * @return false if the BEGIN record could not be written.
+     */
+    protected boolean registerTransaction(int xid)
+    {
+        if (xids.contains(new Integer(xid)))
+            return true;
+        synchronized (xids)
         {
-            return false;
+            if (xids.contains(new Integer(xid)))
+                return true;
+            // publish xid only once its BEGIN record is on disk
+            if (!getTransactionLog().begin(xid))
+                return false;
+            xids.add(new Integer(xid));
+            return true;
         }
-        finally
+    }
+
+    protected void unregisterTransaction(int xid)
+    {
+        synchronized (xids)
         {
-            try
-            {
-                if (oout != null)
-                    oout.close();
-            }
-            catch (IOException e1)
-            {
-            }
+            if (!xids.remove(new Integer(xid)))
+                return;
+            TransactionLog log = getTransactionLog();
+            log.end(xid);
+            if (log.needsCompaction(xids.size()))
+                log.compact(xids);
         }
     }
 
@@ -432,44 +772,24 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         {
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
-        try
-        {
-            synchronized (xids)
-            {
-                xids.add(new Integer(xid));
-                storeTransactionLogs(xids);
-            }
-
-            getTransactionManager().enlist(xid, this);
-        }
-        catch (TransactionManagerUnaccessibleException e)
-        {
-            throw new RemoteException(e.getLocalizedMessage(), e);
-        }
+        enlist(xid);
 
         if (dieTime.equals("AfterEnlist"))
             dieNow();
 
         Collection result = new ArrayList();
         RMTable table = getTable(xid, tablename);
-        synchronized (table)
+        for (Iterator iter = table.keys(); iter.hasNext();)
         {
-            for (Iterator iter = table.keySet().iterator(); iter.hasNext();)
+            Object key = iter.next();
+            ResourceItem item = table.get(key);
+            if (item != null && !item.isDeleted())
             {
-                Object key = iter.next();
-                ResourceItem item = table.get(key);
+                lockRow(table, key, LockManager.READ);
+                // the row may have changed while we waited for the lock
+                item = table.get(key);
                 if (item != null && !item.isDeleted())
-                {
-                    table.lock(key, LockManager.READ);
                     result.add(item);
-                }
-            }
-            if (!result.isEmpty())
-            {
-                if (!storeTable(table, new File("data/" + xid + "/" + tablename)))
-                {
-                    throw new RemoteException("System Error: Can't write table to disk!");
-                }
             }
         }
         return result;
@@ -482,32 +802,23 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         {
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
-        try
-        {
-            synchronized (xids)
-            {
-                xids.add(new Integer(xid));
-                storeTransactionLogs(xids);
-            }
-            getTransactionManager().enlist(xid, this);
-        }
-        catch (TransactionManagerUnaccessibleException e)
-        {
-            throw new RemoteException(e.getLocalizedMessage(), e);
-        }
+        enlist(xid);
 
         if (dieTime.equals("AfterEnlist"))
             dieNow();
 
-        RMTable table = getTable(xid, tablename);
+        return readRow(getTable(xid, tablename), key);
+    }
+
+    protected ResourceItem readRow(RMTable table, Object key) throws DeadlockException
+    {
         ResourceItem item = table.get(key);
         if (item != null && !item.isDeleted())
         {
-            table.lock(key, LockManager.READ);
-            if (!storeTable(table, new File("data/" + xid + "/" + tablename)))
-            {
-                throw new RemoteException("System Error: Can't write table to disk!");
-            }
+            lockRow(table, key, LockManager.READ);
+            item = table.get(key);
+            if (item == null || item.isDeleted())
+                return null;
             return item;
         }
         return null;
@@ -520,127 +831,405 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         {
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
-        try
-        {
-            synchronized (xids)
-            {
-                xids.add(new Integer(xid));
-                storeTransactionLogs(xids);
-            }
-            getTransactionManager().enlist(xid, this);
-        }
-        catch (TransactionManagerUnaccessibleException e)
-        {
-            throw new RemoteException(e.getLocalizedMessage(), e);
-        }
+        enlist(xid);
 
         if (dieTime.equals("AfterEnlist"))
             dieNow();
 
+        return readIndex(getTable(xid, tablename), indexName, indexVal);
+    }
+
+    protected Collection readIndex(RMTable table, String indexName, Object indexVal) throws DeadlockException,
+            InvalidIndexException
+    {
         Collection result = new ArrayList();
-        RMTable table = getTable(xid, tablename);
-        synchronized (table)
+        if (optimistic)
+            table.recordIndexRead(indexName, indexVal);
+        for (Iterator iter = table.indexLookup(indexName, indexVal).iterator(); iter.hasNext();)
         {
-            for (Iterator iter = table.keySet().iterator(); iter.hasNext();)
+            Object key = iter.next();
+            ResourceItem item = table.get(key);
+            if (item != null && !item.isDeleted() && item.getIndex(indexName).equals(indexVal))
             {
-                Object key = iter.next();
-                ResourceItem item = table.get(key);
+                lockRow(table, key, LockManager.READ);
+                item = table.get(key);
                 if (item != null && !item.isDeleted() && item.getIndex(indexName).equals(indexVal))
-                {
-                    table.lock(key, LockManager.READ);
                     result.add(item);
-                }
-            }
-            if (!result.isEmpty())
-            {
-                if (!storeTable(table, new File("data/" + xid + "/" + tablename)))
-                {
-                    throw new RemoteException("System Error: Can't write table to disk!");
-                }
             }
         }
         return result;
     }
 
-    public boolean update(int xid, String tablename, Object key, ResourceItem newItem) throws DeadlockException,
-            InvalidTransactionException, RemoteException
+    /**
+     * Server-side state of an open scan: the rows left to visit, read and
+     * locked one batch at a time.
+     */
+    protected static class Cursor
     {
-        if (xid < 0)
+        int xid;
+
+        RMTable table;
+
+        Iterator keys;
+
+        /** Null for a scan of the whole table. */
+        String indexName;
+
+        Object indexVal;
+
+        Cursor(int xid, RMTable table, Iterator keys, String indexName, Object indexVal)
         {
-            throw new InvalidTransactionException(xid, "Xid must be positive.");
+            this.xid = xid;
+            this.table = table;
+            this.keys = keys;
+            this.indexName = indexName;
+            this.indexVal = indexVal;
         }
-        if (!key.equals(newItem.getKey()))
-            throw new IllegalArgumentException();
+    }
+
+    /** cursor id -> Cursor */
+    protected ConcurrentHashMap cursors = new ConcurrentHashMap();
 
+    protected AtomicInteger nextCursor = new AtomicInteger();
+
+    public int openScan(int xid, String tablename) throws DeadlockException, InvalidTransactionException,
+            RemoteException
+    {
         try
         {
-            synchronized (xids)
-            {
-                xids.add(new Integer(xid));
-                storeTransactionLogs(xids);
-            }
-            getTransactionManager().enlist(xid, this);
+            return openScan(xid, tablename, null, null);
         }
-        catch (TransactionManagerUnaccessibleException e)
+        catch (InvalidIndexException e)
         {
-            throw new RemoteException(e.getLocalizedMessage(), e);
+            // no index given
+            throw new RuntimeException(e);
         }
+    }
 
-        if (dieTime.equals("AfterEnlist"))
-            dieNow();
-
-        RMTable table = getTable(xid, tablename);
-        ResourceItem item = table.get(key);
-        if (item != null && !item.isDeleted())
+    public int openScan(int xid, String tablename, String indexName, Object indexVal) throws DeadlockException,
+            InvalidTransactionException, InvalidIndexException, RemoteException
+    {
+        if (xid < 0)
         {
-            table.lock(key, LockManager.WRITE);
-            table.put(newItem);
-            if (!storeTable(table, new File("data/" + xid + "/" + tablename)))
+            throw new InvalidTransactionException(xid, "Xid must be positive.");
+        }
+        enlist(xid);
+
+        if (dieTime.equals("AfterEnlist"))
+            dieNow();
+
+        RMTable table = getTable(xid, tablename);
+        Iterator keys;
+        if (indexName == null)
+        {
+            keys = table.keys();
+        }
+        else
+        {
+            if (optimistic)
+                table.recordIndexRead(indexName, indexVal);
+            keys = table.indexLookup(indexName, indexVal).iterator();
+        }
+        int id = nextCursor.incrementAndGet();
+        cursors.put(new Integer(id), new Cursor(xid, table, keys, indexName, indexVal));
+        return id;
+    }
+
+    public List fetch(int xid, int cursor, int max) throws DeadlockException, InvalidTransactionException,
+            RemoteException
+    {
+        Cursor c = (Cursor) cursors.get(new Integer(cursor));
+        if (c == null || c.xid != xid)
+        {
+            throw new InvalidTransactionException(xid, "No open cursor " + cursor);
+        }
+        touch(xid);
+        List result = new ArrayList();
+        synchronized (c)
+        {
+            while (result.size() < max && c.keys.hasNext())
             {
-                throw new RemoteException("System Error: Can't write table to disk!");
+                Object key = c.keys.next();
+                ResourceItem item = c.table.get(key);
+                if (item != null && !item.isDeleted() && inScan(c, item))
+                {
+                    lockRow(c.table, key, LockManager.READ);
+                    item = c.table.get(key);
+                    if (item != null && !item.isDeleted() && inScan(c, item))
+                        result.add(item);
+                }
             }
+        }
+        return result;
+    }
+
+    protected boolean inScan(Cursor c, ResourceItem item)
+    {
+        if (c.indexName == null)
             return true;
+        try
+        {
+            return item.getIndex(c.indexName).equals(c.indexVal);
+        }
+        catch (InvalidIndexException e)
+        {
+            return false;
         }
-        return false;
     }
 
-    public boolean insert(int xid, String tablename, ResourceItem newItem) throws DeadlockException,
+    public void closeScan(int xid, int cursor)
+    {
+        Cursor c = (Cursor) cursors.get(new Integer(cursor));
+        if (c != null && c.xid == xid)
+        {
+            touch(xid);
+            cursors.remove(new Integer(cursor));
+        }
+    }
+
+    /**
+     * Closes the cursors xid left open.
+     */
+    protected void closeScans(int xid)
+    {
+        for (Iterator iter = cursors.values().iterator(); iter.hasNext();)
+        {
+            if (((Cursor) iter.next()).xid == xid)
+                iter.remove();
+        }
+    }
+
+    public int countReferences(int xid, String tablename, String indexName, Object indexVal)
+            throws DeadlockException, InvalidTransactionException, InvalidIndexException, RemoteException
+    {
+        if (xid < 0)
+        {
+            throw new InvalidTransactionException(xid, "Xid must be positive.");
+        }
+        enlist(xid);
+
+        if (dieTime.equals("AfterEnlist"))
+            dieNow();
+
+        int n = 0;
+        RMTable table = getTable(xid, tablename);
+        // the index lock stands in for read locks on the matching rows
+        if (optimistic)
+            table.recordIndexRead(indexName, indexVal);
+        else
+            table.lockIndex(indexName, indexVal, LockManager.WRITE);
+        for (Iterator iter = table.indexLookup(indexName, indexVal).iterator(); iter.hasNext();)
+        {
+            ResourceItem item = table.get(iter.next());
+            if (item != null && !item.isDeleted() && item.getIndex(indexName).equals(indexVal))
+                n++;
+        }
+        return n;
+    }
+
+    /*
+     * Snapshot reads see the committed rows as of timestamp ts. They take no
+     * locks, don't enlist and write nothing to disk.
+     */
+    public ResourceItem querySnapshot(long ts, String tablename, Object key) throws RemoteException
+    {
+        ResourceItem item = getTable(tablename).getVersion(key, ts);
+        if (item == null || item.isDeleted())
+            return null;
+        return item;
+    }
+
+    public Collection querySnapshot(long ts, String tablename) throws RemoteException
+    {
+        Collection result = new ArrayList();
+        RMTable table = getTable(tablename);
+        for (Iterator iter = table.snapshotKeys().iterator(); iter.hasNext();)
+        {
+            ResourceItem item = table.getVersion(iter.next(), ts);
+            if (item != null && !item.isDeleted())
+                result.add(item);
+        }
+        return result;
+    }
+
+    public Collection querySnapshot(long ts, String tablename, String indexName, Object indexVal)
+            throws InvalidIndexException, RemoteException
+    {
+        Collection result = new ArrayList();
+        RMTable table = getTable(tablename);
+        for (Iterator iter = table.snapshotIndexLookup(indexName, indexVal).iterator(); iter.hasNext();)
+        {
+            ResourceItem item = table.getVersion(iter.next(), ts);
+            if (item != null && !item.isDeleted() && item.getIndex(indexName).equals(indexVal))
+                result.add(item);
+        }
+        return result;
+    }
+
+    public boolean update(int xid, String tablename, Object key, ResourceItem newItem) throws DeadlockException,
             InvalidTransactionException, RemoteException
     {
         if (xid < 0)
         {
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
+        if (!key.equals(newItem.getKey()))
+            throw new IllegalArgumentException();
 
-        try
+        if (!registerTransaction(xid))
         {
-            synchronized (xids)
-            {
-                xids.add(new Integer(xid));
-                storeTransactionLogs(xids);
-            }
-            getTransactionManager().enlist(xid, this);
+            throw new RemoteException("System Error: Can't write transaction log to disk!");
         }
-        catch (TransactionManagerUnaccessibleException e)
+        enlist(xid);
+
+        if (dieTime.equals("AfterEnlist"))
+            dieNow();
+
+        RMTable table = getTable(xid, tablename);
+        if (!updateRow(table, key, newItem))
+            return false;
+        if (!storeTable(table, new File("data/" + xid + "/" + tablename)))
         {
-            throw new RemoteException(e.getLocalizedMessage(), e);
+            throw new RemoteException("System Error: Can't write table to disk!");
+        }
+        return true;
+    }
+
+    protected boolean updateRow(RMTable table, Object key, ResourceItem newItem) throws DeadlockException
+    {
+        ResourceItem item = table.get(key);
+        if (item == null || item.isDeleted())
+            return false;
+        lockRow(table, key, LockManager.WRITE);
+        item = table.get(key);
+        if (item == null || item.isDeleted())
+            return false;
+        if (!optimistic)
+            table.lockIndexes(item, newItem);
+        table.put(newItem);
+        return true;
+    }
+
+    public boolean adjustAvail(int xid, String tablename, Object key, int delta) throws DeadlockException,
+            InvalidTransactionException, RemoteException
+    {
+        return adjust(xid, tablename, key, delta) != null;
+    }
+
+    public ResourceItem decrementIfAvailable(int xid, String tablename, Object key, int amount)
+            throws DeadlockException, InvalidTransactionException, RemoteException
+    {
+        if (amount < 0)
+        {
+            throw new IllegalArgumentException("Negative amount " + amount);
+        }
+        return adjust(xid, tablename, key, -amount);
+    }
+
+    /**
+     * Checks and adjusts numAvail of an InventoryItem row in one step.
+     *
+     * @return the row as xid now sees it, or null if it doesn't exist or
+     *         has too few units left.
+     */
+    protected ResourceItem adjust(int xid, String tablename, Object key, int delta) throws DeadlockException,
+            InvalidTransactionException, RemoteException
+    {
+        if (xid < 0)
+        {
+            throw new InvalidTransactionException(xid, "Xid must be positive.");
+        }
+        if (!registerTransaction(xid))
+        {
+            throw new RemoteException("System Error: Can't write transaction log to disk!");
+        }
+        enlist(xid);
+
+        if (dieTime.equals("AfterEnlist"))
+            dieNow();
+
+        RMTable table = getTable(xid, tablename);
+        ResourceItem item = adjustRow(table, key, delta);
+        if (item == null)
+            return null;
+        if (!storeTable(table, new File("data/" + xid + "/" + tablename)))
+        {
+            throw new RemoteException("System Error: Can't write table to disk!");
+        }
+        return item;
+    }
+
+    protected ResourceItem adjustRow(RMTable table, Object key, int delta) throws DeadlockException
+    {
+        ResourceItem item = table.get(key);
+        if (item == null || item.isDeleted())
+            return null;
+        if (optimistic || table.hasOwnRow(key))
+        {
+            // a row this transaction already wrote, or validation instead of
+            // locks: a plain read-modify-write
+            lockRow(table, key, LockManager.WRITE);
+            InventoryItem row = (InventoryItem) table.get(key);
+            if (row == null || row.isDeleted() || row.getNumAvail() + delta < 0)
+                return null;
+            row = (InventoryItem) row.clone();
+            row.setNumAvail(row.getNumAvail() + delta);
+            table.put(row);
+        }
+        else
+        {
+            // escrow holders share the INCREMENT lock; it keeps out readers
+            // and writers of the whole row
+            table.lock(key, LockManager.INCREMENT);
+            if (!table.escrow(key, delta))
+                return null;
+        }
+        return table.get(key);
+    }
+
+    public boolean insert(int xid, String tablename, ResourceItem newItem) throws DeadlockException,
+            InvalidTransactionException, RemoteException
+    {
+        if (xid < 0)
+        {
+            throw new InvalidTransactionException(xid, "Xid must be positive.");
+        }
+
+        if (!registerTransaction(xid))
+        {
+            throw new RemoteException("System Error: Can't write transaction log to disk!");
         }
+        enlist(xid);
 
         if (dieTime.equals("AfterEnlist"))
             dieNow();
 
         RMTable table = getTable(xid, tablename);
+        if (!insertRow(table, newItem))
+            return false;
+        if (!storeTable(table, new File("data/" + xid + "/" + tablename)))
+        {
+            throw new RemoteException("System Error: Can't write table to disk!");
+        }
+        return true;
+    }
+
+    protected boolean insertRow(RMTable table, ResourceItem newItem) throws DeadlockException
+    {
         ResourceItem item = (ResourceItem) table.get(newItem.getKey());
         if (item != null && !item.isDeleted())
         {
             return false;
         }
-        table.lock(newItem.getKey(), LockManager.WRITE);
-        table.put(newItem);
-        if (!storeTable(table, new File("data/" + xid + "/" + tablename)))
+        lockRow(table, newItem.getKey(), LockManager.WRITE);
+        item = table.get(newItem.getKey());
+        if (item != null && !item.isDeleted())
         {
-            throw new RemoteException("System Error: Can't write table to disk!");
+            return false;
         }
+        if (!optimistic)
+            table.lockIndexes(item, newItem);
+        table.put(newItem);
         return true;
     }
 
@@ -652,38 +1241,40 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
 
-        try
+        if (!registerTransaction(xid))
         {
-            synchronized (xids)
-            {
-                xids.add(new Integer(xid));
-                storeTransactionLogs(xids);
-            }
-            getTransactionManager().enlist(xid, this);
-        }
-        catch (TransactionManagerUnaccessibleException e)
-        {
-            throw new RemoteException(e.getLocalizedMessage(), e);
+            throw new RemoteException("System Error: Can't write transaction log to disk!");
         }
+        enlist(xid);
 
         if (dieTime.equals("AfterEnlist"))
             dieNow();
 
         RMTable table = getTable(xid, tablename);
-        ResourceItem item = table.get(key);
-        if (item != null && !item.isDeleted())
+        if (!deleteRow(table, key))
+            return false;
+        if (!storeTable(table, new File("data/" + xid + "/" + tablename)))
         {
-            table.lock(key, LockManager.WRITE);
-            item = (ResourceItem) item.clone();
-            item.delete();
-            table.put(item);
-            if (!storeTable(table, new File("data/" + xid + "/" + tablename)))
-            {
-                throw new RemoteException("System Error: Can't write table to disk!");
-            }
-            return true;
+            throw new RemoteException("System Error: Can't write table to disk!");
         }
-        return false;
+        return true;
+    }
+
+    protected boolean deleteRow(RMTable table, Object key) throws DeadlockException
+    {
+        ResourceItem item = table.get(key);
+        if (item == null || item.isDeleted())
+            return false;
+        lockRow(table, key, LockManager.WRITE);
+        item = table.get(key);
+        if (item == null || item.isDeleted())
+            return false;
+        if (!optimistic)
+            table.lockIndexes(item, null);
+        item = (ResourceItem) item.clone();
+        item.delete();
+        table.put(item);
+        return true;
     }
 
     public int delete(int xid, String tablename, String indexName, Object indexVal) throws DeadlockException,
@@ -693,53 +1284,141 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         {
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
-        try
+        if (!registerTransaction(xid))
         {
-            synchronized (xids)
+            throw new RemoteException("System Error: Can't write transaction log to disk!");
+        }
+        enlist(xid);
+
+        if (dieTime.equals("AfterEnlist"))
+            dieNow();
+
+        RMTable table = getTable(xid, tablename);
+        int n = deleteIndex(table, indexName, indexVal);
+        if (n > 0)
+        {
+            if (!storeTable(table, new File("data/" + xid + "/" + tablename)))
             {
-                xids.add(new Integer(xid));
-                storeTransactionLogs(xids);
+                throw new RemoteException("System Error: Can't write table to disk!");
             }
-            getTransactionManager().enlist(xid, this);
         }
-        catch (TransactionManagerUnaccessibleException e)
+        return n;
+    }
+
+    protected int deleteIndex(RMTable table, String indexName, Object indexVal) throws DeadlockException,
+            InvalidIndexException
+    {
+        int n = 0;
+        if (optimistic)
+            table.recordIndexRead(indexName, indexVal);
+        for (Iterator iter = table.indexLookup(indexName, indexVal).iterator(); iter.hasNext();)
         {
-            throw new RemoteException(e.getLocalizedMessage(), e);
+            Object key = iter.next();
+            ResourceItem item = table.get(key);
+            if (item != null && !item.isDeleted() && item.getIndex(indexName).equals(indexVal))
+            {
+                lockRow(table, key, LockManager.WRITE);
+                item = table.get(key);
+                if (item == null || item.isDeleted() || !item.getIndex(indexName).equals(indexVal))
+                    continue;
+                if (!optimistic)
+                    table.lockIndexes(item, null);
+                item = (ResourceItem) item.clone();
+                item.delete();
+                table.put(item);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    public List execute(int xid, List operations) throws DeadlockException, InvalidTransactionException,
+            InvalidIndexException, RemoteException
+    {
+        if (xid < 0)
+        {
+            throw new InvalidTransactionException(xid, "Xid must be positive.");
+        }
+        boolean write = false;
+        for (Iterator iter = operations.iterator(); iter.hasNext();)
+            write |= ((Operation) iter.next()).isWrite();
+        if (write && !registerTransaction(xid))
+        {
+            throw new RemoteException("System Error: Can't write transaction log to disk!");
         }
+        enlist(xid);
 
         if (dieTime.equals("AfterEnlist"))
             dieNow();
 
-        int n = 0;
-
-        RMTable table = getTable(xid, tablename);
-        synchronized (table)
+        List results = new ArrayList(operations.size());
+        // tables changed by the batch, stored once at the end
+        HashMap changed = new HashMap();
+        for (Iterator iter = operations.iterator(); iter.hasNext();)
         {
-            for (Iterator iter = table.keySet().iterator(); iter.hasNext();)
+            Operation op = (Operation) iter.next();
+            RMTable table = getTable(xid, op.getTablename());
+            Object result;
+            boolean modified;
+            switch (op.getType())
             {
-                Object key = iter.next();
-                ResourceItem item = table.get(key);
-                if (item != null && !item.isDeleted() && item.getIndex(indexName).equals(indexVal))
-                {
-                    table.lock(item.getKey(), LockManager.WRITE);
-                    item = (ResourceItem) item.clone();
-                    item.delete();
-                    table.put(item);
-                    n++;
-                }
+            case Operation.QUERY:
+                result = readRow(table, op.getKey());
+                modified = false;
+                break;
+            case Operation.QUERY_INDEX:
+                result = readIndex(table, op.getIndexName(), op.getIndexVal());
+                modified = false;
+                break;
+            case Operation.INSERT:
+                modified = insertRow(table, op.getItem());
+                result = Boolean.valueOf(modified);
+                break;
+            case Operation.UPDATE:
+                modified = updateRow(table, op.getKey(), op.getItem());
+                result = Boolean.valueOf(modified);
+                break;
+            case Operation.DELETE:
+                modified = deleteRow(table, op.getKey());
+                result = Boolean.valueOf(modified);
+                break;
+            case Operation.DELETE_INDEX:
+            {
+                int n = deleteIndex(table, op.getIndexName(), op.getIndexVal());
+                modified = n > 0;
+                result = new Integer(n);
+                break;
             }
-            if (n > 0)
+            case Operation.ADJUST_AVAIL:
             {
-                if (!storeTable(table, new File("data/" + xid + "/" + tablename)))
-                {
-                    throw new RemoteException("System Error: Can't write table to disk!");
-                }
+                ResourceItem item = adjustRow(table, op.getKey(), op.getAmount());
+                modified = item != null;
+                result = Boolean.valueOf(modified);
+                break;
             }
+            case Operation.DECREMENT:
+                result = adjustRow(table, op.getKey(), -op.getAmount());
+                modified = result != null;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation type " + op.getType());
+            }
+            if (modified)
+                changed.put(op.getTablename(), table);
+            results.add(result);
         }
-        return n;
+        for (Iterator iter = changed.entrySet().iterator(); iter.hasNext();)
+        {
+            Map.Entry entry = (Map.Entry) iter.next();
+            if (!storeTable((RMTable) entry.getValue(), new File("data/" + xid + "/" + entry.getKey())))
+            {
+                throw new RemoteException("System Error: Can't write table to disk!");
+            }
+        }
+        return results;
     }
 
-    public boolean prepare(int xid) throws InvalidTransactionException, RemoteException
+    public int prepare(int xid) throws InvalidTransactionException, RemoteException
     {
         if (dieTime.equals("BeforePrepare"))
             dieNow();
@@ -747,12 +1426,62 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         {
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
+        if (optimistic && !validate(xid))
+            return VOTE_ABORT;
+        if (!fitsStores(xid))
+            return VOTE_ABORT;
+        if (!xids.contains(new Integer(xid)))
+        {
+            // xid only read here: its locks can go now, and it takes no part
+            // in phase two
+            tables.remove(new Integer(xid));
+            closeScans(xid);
+            enlisted.remove(new Integer(xid));
+            lastUsed.remove(new Integer(xid));
+            if (!lm.unlockAll(xid))
+                throw new RuntimeException();
+            return VOTE_READ_ONLY;
+        }
         if (dieTime.equals("AfterPrepare"))
             dieNow();
+        return VOTE_COMMIT;
+    }
+
+    /**
+     * Validates an optimistic transaction and claims the keys it writes
+     * until it commits or aborts.
+     */
+    protected boolean validate(int xid)
+    {
+        Map xidtables = (Map) tables.get(new Integer(xid));
+        if (xidtables == null)
+            return true;
+        synchronized (validationLock)
+        {
+            for (Iterator iter = xidtables.values().iterator(); iter.hasNext();)
+            {
+                if (!((RMTable) iter.next()).validateAndClaim())
+                {
+                    releaseClaims(xidtables);
+                    return false;
+                }
+            }
+        }
         return true;
     }
 
+    protected void releaseClaims(Map xidtables)
+    {
+        for (Iterator iter = xidtables.values().iterator(); iter.hasNext();)
+            ((RMTable) iter.next()).releaseClaims();
+    }
+
     public void commit(int xid) throws InvalidTransactionException, RemoteException
+    {
+        commit(xid, 0);
+    }
+
+    public void commit(int xid, long commitTs) throws InvalidTransactionException, RemoteException
     {
         if (dieTime.equals("BeforeCommit"))
             dieNow();
@@ -760,7 +1489,17 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         {
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
-        Hashtable xidtables = (Hashtable) tables.get(new Integer(xid));
+        applyCommit(xid, commitTs);
+        unregisterTransaction(xid);
+    }
+
+    /**
+     * Commits xid's changes and releases its locks, leaving it in the
+     * transaction log.
+     */
+    protected void applyCommit(int xid, long commitTs) throws RemoteException
+    {
+        Map xidtables = (Map) tables.get(new Integer(xid));
         if (xidtables != null)
         {
             synchronized (xidtables)
@@ -769,34 +1508,158 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
                 {
                     Map.Entry entry = (Map.Entry) iter.next();
                     RMTable xtable = (RMTable) entry.getValue();
+                    File file = new File("data/" + xid + "/" + entry.getKey());
+                    if (!xtable.hasEscrow())
+                    {
+                        commitTable(xtable, file, commitTs);
+                        continue;
+                    }
+                    // Escrowed changes are deltas, which a redo would apply
+                    // twice: turn them into rows holding the numAvail they
+                    // result in, on disk, before the committed table takes
+                    // them. Escrow commits of a table go one at a time up to
+                    // deleting file, so the rows a redo writes again are
+                    // never older than another escrow commit's.
                     RMTable table = getTable(xtable.getTablename());
-                    for (Iterator iter2 = xtable.keySet().iterator(); iter2.hasNext();)
+                    synchronized (table)
                     {
-                        Object key = iter2.next();
-                        ResourceItem item = xtable.get(key);
-                        if (item.isDeleted())
-                            table.remove(item);
-                        else
-                            table.put(item);
+                        Map taken = xtable.escrowToRows();
+                        if (!storeTable(xtable, file))
+                            throw new RemoteException("Can't write table to disk");
+                        commitTable(xtable, file, commitTs);
+                        xtable.releaseTaken(taken);
                     }
-                    if (!storeTable(table, new File("data/" + entry.getKey())))
-                        throw new RemoteException("Can't write table to disk");
-                    new File("data/" + xid + "/" + entry.getKey()).delete();
                 }
                 new File("data/" + xid).delete();
                 tables.remove(new Integer(xid));
             }
         }
+        closeScans(xid);
+        enlisted.remove(new Integer(xid));
+        lastUsed.remove(new Integer(xid));
 
         if (!lm.unlockAll(xid))
             throw new RuntimeException();
+    }
 
-        synchronized (xids)
+    /**
+     * Applies the rows of xtable to its committed table, makes them durable
+     * and deletes file, xtable's copy on disk.
+     */
+    protected void commitTable(RMTable xtable, File file, long commitTs) throws RemoteException
+    {
+        Collection rows = xtable.values();
+        if (!rows.isEmpty())
+        {
+            RMTable table = getTable(xtable.getTablename());
+            for (Iterator iter = rows.iterator(); iter.hasNext();)
+            {
+                table.commitRow((ResourceItem) iter.next(), commitTs);
+            }
+            if (!storeCommittedTable(table))
+                throw new RemoteException("Can't write table to disk");
+        }
+        xtable.releaseClaims();
+        file.delete();
+    }
+
+    /**
+     * @return false if a row xid wrote is too big for the store of its
+     *         committed table, where commit could not apply it.
+     */
+    protected boolean fitsStores(int xid)
+    {
+        Map xidtables = (Map) tables.get(new Integer(xid));
+        if (xidtables == null)
+            return true;
+        for (Iterator iter = xidtables.values().iterator(); iter.hasNext();)
         {
-            xids.remove(new Integer(xid));
+            RMTable xtable = (RMTable) iter.next();
+            TableStore store = getTable(xtable.getTablename()).getStore();
+            if (store == null)
+                continue;
+            for (Iterator rows = xtable.values().iterator(); rows.hasNext();)
+            {
+                ResourceItem item = (ResourceItem) rows.next();
+                if (!item.isDeleted() && RowCodec.encode(item).length > store.getMaxRowSize())
+                {
+                    System.out.println(myRMIName + " xid " + xid + ": row too large to store: " + item.getKey());
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** How many one-phase outcomes are kept for getOnePhaseOutcome. */
+    protected final static int MAX_ONE_PHASE_OUTCOMES = 10000;
+
+    /**
+     * xid -> commit timestamp, or OUTCOME_ABORTED, of the latest one-phase
+     * commits, oldest first.
+     */
+    protected Map onePhaseOutcomes = Collections.synchronizedMap(new LinkedHashMap()
+    {
+        protected boolean removeEldestEntry(Map.Entry eldest)
+        {
+            return size() > MAX_ONE_PHASE_OUTCOMES;
+        }
+    });
+
+    public boolean commitOnePhase(int xid, long commitTs) throws InvalidTransactionException, RemoteException
+    {
+        int vote = prepare(xid);
+        if (vote == VOTE_COMMIT && !mayCommitOnePhase(xid))
+            vote = VOTE_ABORT;
+        if (vote == VOTE_ABORT)
+        {
+            abort(xid);
+            onePhaseOutcomes.put(new Integer(xid), new Long(TransactionManager.OUTCOME_ABORTED));
+            return false;
+        }
+        // a read-only xid is already released by prepare
+        if (vote == VOTE_COMMIT)
+        {
+            // the decision is this RM's alone and no TM log records it:
+            // force it before applying, so that recovery redoes a commit
+            // cut short instead of presuming it aborted
+            if (!getTransactionLog().commit(xid, commitTs))
+            {
+                abort(xid);
+                onePhaseOutcomes.put(new Integer(xid), new Long(TransactionManager.OUTCOME_ABORTED));
+                return false;
+            }
+            onePhaseOutcomes.put(new Integer(xid), new Long(commitTs));
+            commit(xid, commitTs);
+        }
+        return true;
+    }
+
+    /**
+     * Asks the TM whether xid may still commit here: once the TM has told
+     * the client it aborted, it must not.
+     */
+    protected boolean mayCommitOnePhase(int xid)
+    {
+        try
+        {
+            return getTransactionManager().mayCommitOnePhase(xid);
+        }
+        catch (Exception e)
+        {
+            System.err.println(myRMIName + " can't reach the TM to commit xid " + xid + ": " + e);
+            return false;
         }
     }
 
+    public long getOnePhaseOutcome(int xid) throws RemoteException
+    {
+        Long outcome = (Long) onePhaseOutcomes.get(new Integer(xid));
+        if (outcome == null)
+            return TransactionManager.OUTCOME_ACTIVE;
+        return outcome.longValue();
+    }
+
     public void abort(int xid) throws InvalidTransactionException, RemoteException
     {
         if (dieTime.equals("BeforeAbort"))
@@ -805,28 +1668,35 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         {
             throw new InvalidTransactionException(xid, "Xid must be positive.");
         }
-        Hashtable xidtables = (Hashtable) tables.get(new Integer(xid));
+        if (getTransactionLog().getCommitTs(xid) >= 0)
+        {
+            // committed in one phase: the logged decision stands
+            return;
+        }
+        Map xidtables = (Map) tables.get(new Integer(xid));
         if (xidtables != null)
         {
             synchronized (xidtables)
             {
+                releaseClaims(xidtables);
                 for (Iterator iter = xidtables.entrySet().iterator(); iter.hasNext();)
                 {
                     Map.Entry entry = (Map.Entry) iter.next();
+                    ((RMTable) entry.getValue()).abortEscrow();
                     new File("data/" + xid + "/" + entry.getKey()).delete();
                 }
                 new File("data/" + xid).delete();
                 tables.remove(new Integer(xid));
             }
         }
+        closeScans(xid);
+        enlisted.remove(new Integer(xid));
+        lastUsed.remove(new Integer(xid));
 
         if (!lm.unlockAll(xid))
             throw new RuntimeException();
 
-        synchronized (xids)
-        {
-            xids.remove(new Integer(xid));
-        }
+        unregisterTransaction(xid);
     }
 
     //  test usage
@@ -0,0 +1,210 @@
+package transaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Compact binary encoding of the table rows, used by the on-disk table
+ * stores instead of Java serialization.
+ * <p>
+ * The numeric columns of Flight, Hotel and Car come first so that they sit
+ * at fixed offsets of the encoded row; the string columns follow.
+ */
+public class RowCodec
+{
+    protected final static byte TYPE_FLIGHT = 1;
+
+    protected final static byte TYPE_HOTEL = 2;
+
+    protected final static byte TYPE_CAR = 3;
+
+    protected final static byte TYPE_CUSTOMER = 4;
+
+    protected final static byte TYPE_RESERVATION = 5;
+
+    public static byte[] encode(ResourceItem item)
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bout);
+        try
+        {
+            if (item instanceof Flight)
+            {
+                Flight f = (Flight) item;
+                out.writeByte(TYPE_FLIGHT);
+                out.writeInt(f.getPrice());
+                out.writeInt(f.getNumSeats());
+                out.writeInt(f.getNumAvail());
+                out.writeUTF(f.getFlightNum());
+            }
+            else if (item instanceof Hotel)
+            {
+                Hotel h = (Hotel) item;
+                out.writeByte(TYPE_HOTEL);
+                out.writeInt(h.getPrice());
+                out.writeInt(h.getNumRooms());
+                out.writeInt(h.getNumAvail());
+                out.writeUTF(h.getLocation());
+            }
+            else if (item instanceof Car)
+            {
+                Car c = (Car) item;
+                out.writeByte(TYPE_CAR);
+                out.writeInt(c.getPrice());
+                out.writeInt(c.getNumCars());
+                out.writeInt(c.getNumAvail());
+                out.writeUTF(c.getLocation());
+            }
+            else if (item instanceof Customer)
+            {
+                out.writeByte(TYPE_CUSTOMER);
+                out.writeUTF(((Customer) item).getCustName());
+            }
+            else if (item instanceof Reservation)
+            {
+                Reservation r = (Reservation) item;
+                out.writeByte(TYPE_RESERVATION);
+                out.writeInt(r.getResvType());
+                out.writeUTF(r.getCustName());
+                out.writeUTF(r.getResvKey());
+            }
+            else
+            {
+                throw new IllegalArgumentException("No encoding for " + item.getClass().getName());
+            }
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            // cannot happen on a ByteArrayOutputStream
+            throw new RuntimeException(e);
+        }
+        return bout.toByteArray();
+    }
+
+    public static ResourceItem decode(byte[] buf, int off, int len)
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf, off, len));
+        try
+        {
+            byte type = in.readByte();
+            switch (type)
+            {
+            case TYPE_FLIGHT:
+            {
+                int price = in.readInt();
+                int total = in.readInt();
+                int avail = in.readInt();
+                return new Flight(in.readUTF(), total, avail, price);
+            }
+            case TYPE_HOTEL:
+            {
+                int price = in.readInt();
+                int total = in.readInt();
+                int avail = in.readInt();
+                return new Hotel(in.readUTF(), total, avail, price);
+            }
+            case TYPE_CAR:
+            {
+                int price = in.readInt();
+                int total = in.readInt();
+                int avail = in.readInt();
+                return new Car(in.readUTF(), total, avail, price);
+            }
+            case TYPE_CUSTOMER:
+                return new Customer(in.readUTF());
+            case TYPE_RESERVATION:
+            {
+                int resvType = in.readInt();
+                String custName = in.readUTF();
+                return new Reservation(custName, resvType, in.readUTF());
+            }
+            default:
+                throw new IllegalStateException("Unknown row type " + type);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Corrupt row: " + e);
+        }
+    }
+
+    public static ResourceItem decode(byte[] buf)
+    {
+        return decode(buf, 0, buf.length);
+    }
+
+    /**
+     * Decodes only the key of an encoded row, without building the row.
+     */
+    public static Object decodeKey(byte[] buf, int off, int len)
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf, off, len));
+        try
+        {
+            byte type = in.readByte();
+            switch (type)
+            {
+            case TYPE_FLIGHT:
+            case TYPE_HOTEL:
+            case TYPE_CAR:
+                // price, total and avail come first
+                in.skipBytes(12);
+                return in.readUTF();
+            case TYPE_CUSTOMER:
+                return in.readUTF();
+            case TYPE_RESERVATION:
+            {
+                int resvType = in.readInt();
+                String custName = in.readUTF();
+                return new ReservationKey(custName, resvType, in.readUTF());
+            }
+            default:
+                throw new IllegalStateException("Unknown row type " + type);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Corrupt row: " + e);
+        }
+    }
+
+    public static Object decodeKey(byte[] buf)
+    {
+        return decodeKey(buf, 0, buf.length);
+    }
+
+    /**
+     * Encodes a row key as a string that sorts consistently and can be
+     * turned back into the key with parseKey.
+     */
+    public static String keyString(Object key)
+    {
+        if (key instanceof String)
+            return "S" + key;
+        if (key instanceof ReservationKey)
+        {
+            ReservationKey k = (ReservationKey) key;
+            return "R" + k.custName.length() + "|" + k.custName + k.resvType + "|" + k.resvKey;
+        }
+        throw new IllegalArgumentException("No encoding for key " + key.getClass().getName());
+    }
+
+    public static Object parseKey(String s)
+    {
+        if (s.charAt(0) == 'S')
+            return s.substring(1);
+        if (s.charAt(0) == 'R')
+        {
+            int bar = s.indexOf('|');
+            int nameEnd = bar + 1 + Integer.parseInt(s.substring(1, bar));
+            int typeEnd = s.indexOf('|', nameEnd);
+            return new ReservationKey(s.substring(bar + 1, nameEnd), Integer.parseInt(s.substring(nameEnd, typeEnd)),
+                    s.substring(typeEnd + 1));
+        }
+        throw new IllegalArgumentException("Corrupt key " + s);
+    }
+}
@@ -0,0 +1,294 @@
+package transaction;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable file of key-sorted entries, written once by LsmTableStore when
+ * it flushes its memtable or compacts.
+ * <p>
+ * File layout: the entries (key, tombstone flag, row length, encoded row) in
+ * key order, then a footer with the entry count, a bloom filter over the keys
+ * and a sparse index (every INDEX_INTERVAL-th key and its file offset), then
+ * a trailer holding the footer offset. A point lookup consults the bloom
+ * filter, binary-searches the sparse index and reads one index interval.
+ */
+public class SortedRun
+{
+    protected final static int MAGIC = 0x44424c31;
+
+    protected final static int TRAILER_SIZE = 12;
+
+    protected final static int INDEX_INTERVAL = 32;
+
+    /** Value returned for a deleted key. */
+    public final static byte[] TOMBSTONE = new byte[0];
+
+    public static class Entry
+    {
+        public final String key;
+
+        public final byte[] value;
+
+        Entry(String key, byte[] value)
+        {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Writes a new run; entries must be added in ascending key order.
+     */
+    public static class Writer
+    {
+        protected FileOutputStream fout;
+
+        protected DataOutputStream out;
+
+        protected ByteArrayOutputStream entryBuf = new ByteArrayOutputStream(256);
+
+        protected DataOutputStream entryOut = new DataOutputStream(entryBuf);
+
+        protected long offset = 0;
+
+        protected int count = 0;
+
+        protected BloomFilter bloom;
+
+        protected ArrayList indexKeys = new ArrayList();
+
+        protected ArrayList indexOffsets = new ArrayList();
+
+        public Writer(File file, int expectedKeys) throws IOException
+        {
+            fout = new FileOutputStream(file);
+            out = new DataOutputStream(new BufferedOutputStream(fout, 65536));
+            bloom = new BloomFilter(expectedKeys);
+        }
+
+        public void add(String key, byte[] value) throws IOException
+        {
+            if (count % INDEX_INTERVAL == 0)
+            {
+                indexKeys.add(key);
+                indexOffsets.add(new Long(offset));
+            }
+            bloom.add(key);
+            entryBuf.reset();
+            entryOut.writeUTF(key);
+            entryOut.writeBoolean(value.length == 0);
+            entryOut.writeInt(value.length);
+            entryOut.write(value);
+            entryOut.flush();
+            entryBuf.writeTo(out);
+            offset += entryBuf.size();
+            count++;
+        }
+
+        public void finish() throws IOException
+        {
+            long footer = offset;
+            out.writeInt(count);
+            bloom.writeTo(out);
+            out.writeInt(indexKeys.size());
+            for (int i = 0; i < indexKeys.size(); i++)
+            {
+                out.writeUTF((String) indexKeys.get(i));
+                out.writeLong(((Long) indexOffsets.get(i)).longValue());
+            }
+            out.writeLong(footer);
+            out.writeInt(MAGIC);
+            out.flush();
+            fout.getFD().sync();
+            out.close();
+        }
+
+        public void abandon()
+        {
+            try
+            {
+                out.close();
+            }
+            catch (IOException e)
+            {
+            }
+        }
+    }
+
+    protected File file;
+
+    protected RandomAccessFile raf;
+
+    protected long dataEnd;
+
+    protected int count;
+
+    protected BloomFilter bloom;
+
+    protected String[] indexKeys;
+
+    protected long[] indexOffsets;
+
+    public SortedRun(File file) throws IOException
+    {
+        this.file = file;
+        raf = new RandomAccessFile(file, "r");
+        long length = raf.length();
+        if (length < TRAILER_SIZE)
+            throw new IOException("Truncated run " + file);
+        raf.seek(length - TRAILER_SIZE);
+        dataEnd = raf.readLong();
+        if (raf.readInt() != MAGIC)
+            throw new IOException("Not a sorted run: " + file);
+        byte[] footer = new byte[(int) (length - TRAILER_SIZE - dataEnd)];
+        raf.seek(dataEnd);
+        raf.readFully(footer);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(footer));
+        count = in.readInt();
+        bloom = BloomFilter.readFrom(in);
+        int n = in.readInt();
+        indexKeys = new String[n];
+        indexOffsets = new long[n];
+        for (int i = 0; i < n; i++)
+        {
+            indexKeys[i] = in.readUTF();
+            indexOffsets[i] = in.readLong();
+        }
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * @return the encoded row, TOMBSTONE if the key was deleted in this run,
+     *         or null if the run says nothing about the key.
+     */
+    public synchronized byte[] get(String key) throws IOException
+    {
+        if (indexKeys.length == 0 || !bloom.mightContain(key))
+            return null;
+        int lo = 0;
+        int hi = indexKeys.length - 1;
+        int block = -1;
+        while (lo <= hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (indexKeys[mid].compareTo(key) <= 0)
+            {
+                block = mid;
+                lo = mid + 1;
+            }
+            else
+            {
+                hi = mid - 1;
+            }
+        }
+        if (block == -1)
+            return null;
+        long start = indexOffsets[block];
+        long end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataEnd;
+        byte[] buf = new byte[(int) (end - start)];
+        raf.seek(start);
+        raf.readFully(buf);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf));
+        while (in.available() > 0)
+        {
+            String k = in.readUTF();
+            boolean tombstone = in.readBoolean();
+            byte[] value = new byte[in.readInt()];
+            in.readFully(value);
+            int cmp = k.compareTo(key);
+            if (cmp == 0)
+                return tombstone ? TOMBSTONE : value;
+            if (cmp > 0)
+                break;
+        }
+        return null;
+    }
+
+    /**
+     * Iterates over all entries in key order with a private stream.
+     */
+    public Iterator iterator() throws IOException
+    {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        return new Iterator()
+        {
+            int read = 0;
+
+            public boolean hasNext()
+            {
+                if (read < count)
+                    return true;
+                try
+                {
+                    in.close();
+                }
+                catch (IOException e)
+                {
+                }
+                return false;
+            }
+
+            public Object next()
+            {
+                if (read >= count)
+                    throw new NoSuchElementException();
+                try
+                {
+                    String key = in.readUTF();
+                    boolean tombstone = in.readBoolean();
+                    byte[] value = new byte[in.readInt()];
+                    in.readFully(value);
+                    read++;
+                    return new Entry(key, tombstone ? TOMBSTONE : value);
+                }
+                catch (EOFException e)
+                {
+                    throw new IllegalStateException("Truncated run " + file);
+                }
+                catch (IOException e)
+                {
+                    throw new RuntimeException("Can't read run " + file + ": " + e);
+                }
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public synchronized void close()
+    {
+        try
+        {
+            raf.close();
+        }
+        catch (IOException e)
+        {
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package transaction;
+
+import java.util.Iterator;
+
+/**
+ * Storage engine for the committed (xid -1) version of an RMTable.
+ * <p>
+ * By default a committed table lives in its RMTable's Hashtable and is
+ * serialized as a whole on every commit. A TableStore lets the table live on
+ * disk instead: writes change only the affected rows and flush() makes them
+ * durable. Implementations must be safe for concurrent use.
+ */
+public interface TableStore
+{
+    public ResourceItem get(Object key);
+
+    public void put(ResourceItem item);
+
+    public void remove(Object key);
+
+    /** Iterates over the keys of all rows currently in the store. */
+    public Iterator keys();
+
+    /**
+     * @return the number of rows, or an upper bound on it for stores that
+     *         cannot count cheaply; 0 only if the store is empty.
+     */
+    public int size();
+
+    /**
+     * @return the largest encoded row (RowCodec) put accepts, in bytes.
+     */
+    public int getMaxRowSize();
+
+    /**
+     * Forces all changes made since the last flush to disk.
+     *
+     * @return false if the store could not be written.
+     */
+    public boolean flush();
+
+    public void close();
+}
@@ -0,0 +1,14 @@
+package transaction;
+
+import java.rmi.RemoteException;
+
+/**
+ * The commit of a transaction could not be confirmed: it may have committed
+ * or aborted, and the Transaction Manager will learn which once the lost
+ * participant is back.
+ */
+public class TransactionInDoubtException extends RemoteException {
+    public TransactionInDoubtException(int Xid, String msg) {
+	super("The transaction " + Xid + " is in doubt:" + msg);
+    }
+}
@@ -0,0 +1,313 @@
+package transaction;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Append-only registry of the xids a Resource Manager is working on.
+ * <p>
+ * A BEGIN record is appended the first time an xid touches the RM and an END
+ * record when it commits or aborts, so an operation on an xid the RM already
+ * knows costs no disk write at all. Replaying the file yields the xids that
+ * were still in flight when the RM went down. Once enough END records have
+ * piled up the file is rewritten with BEGIN records for the live xids only.
+ * <p>
+ * An RM that decides a commit alone (one-phase commit) forces a COMMIT
+ * record, with the commit timestamp, before it applies it, so that recovery
+ * can finish the commit the TM has already been told about.
+ */
+public class TransactionLog
+{
+    protected final static byte BEGIN = 1;
+
+    protected final static byte END = 2;
+
+    protected final static byte COMMIT = 3;
+
+    protected final static int RECORD_SIZE = 5;
+
+    protected final static int COMMIT_RECORD_SIZE = 13;
+
+    /** Minimum number of records before a compaction is considered. */
+    protected final static int COMPACT_THRESHOLD = 1024;
+
+    protected File file;
+
+    protected FileOutputStream out = null;
+
+    protected int records = 0;
+
+    /** xid -> Long commit timestamp, for live xids with a COMMIT record. */
+    protected HashMap committed = new HashMap();
+
+    public TransactionLog(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Replays the log and returns the xids that have a BEGIN but no END
+     * record. A torn record at the tail (crash in the middle of an append)
+     * is cut off, so that the records appended next are read back whole.
+     */
+    public synchronized HashSet replay()
+    {
+        HashSet live = new HashSet();
+        records = 0;
+        committed.clear();
+        if (!file.exists())
+            return live;
+        DataInputStream in = null;
+        long valid = 0;
+        try
+        {
+            in = new DataInputStream(new FileInputStream(file));
+            while (true)
+            {
+                byte type = in.readByte();
+                Integer xid = new Integer(in.readInt());
+                if (type == BEGIN)
+                {
+                    live.add(xid);
+                    valid += RECORD_SIZE;
+                }
+                else if (type == END)
+                {
+                    live.remove(xid);
+                    committed.remove(xid);
+                    valid += RECORD_SIZE;
+                }
+                else if (type == COMMIT)
+                {
+                    committed.put(xid, new Long(in.readLong()));
+                    valid += COMMIT_RECORD_SIZE;
+                }
+                else
+                    break;
+                records++;
+            }
+        }
+        catch (EOFException e)
+        {
+        }
+        catch (IOException e)
+        {
+        }
+        finally
+        {
+            try
+            {
+                if (in != null)
+                    in.close();
+            }
+            catch (IOException e1)
+            {
+            }
+        }
+        if (file.length() > valid)
+            truncate(valid);
+        return live;
+    }
+
+    public synchronized boolean begin(int xid)
+    {
+        return append(BEGIN, xid);
+    }
+
+    public synchronized boolean end(int xid)
+    {
+        committed.remove(new Integer(xid));
+        return append(END, xid);
+    }
+
+    /**
+     * Appends a COMMIT record for xid and waits until it is on disk.
+     *
+     * @return false if the record could not be made durable; xid must then
+     *         be aborted.
+     */
+    public synchronized boolean commit(int xid, long commitTs)
+    {
+        byte[] buf = new byte[COMMIT_RECORD_SIZE];
+        encodeCommit(buf, 0, xid, commitTs);
+        if (!append(buf))
+            return false;
+        try
+        {
+            out.getFD().sync();
+        }
+        catch (IOException e)
+        {
+            close();
+            return false;
+        }
+        committed.put(new Integer(xid), new Long(commitTs));
+        return true;
+    }
+
+    /**
+     * @return the timestamp of xid's COMMIT record, or -1 if xid has none
+     *         (or has ended).
+     */
+    public synchronized long getCommitTs(int xid)
+    {
+        Long ts = (Long) committed.get(new Integer(xid));
+        return ts == null ? -1 : ts.longValue();
+    }
+
+    /**
+     * @return true once the dead records outnumber the live ones by enough
+     *         to make rewriting the file worthwhile.
+     */
+    public synchronized boolean needsCompaction(int liveCount)
+    {
+        return records > COMPACT_THRESHOLD && records > 2 * liveCount;
+    }
+
+    /**
+     * Rewrites the log so that it holds one BEGIN record per live xid, and
+     * the COMMIT records of those that have one. The new file is written
+     * aside and renamed over the old one, so a crash in the middle leaves
+     * either the old or the new log in place.
+     */
+    public synchronized boolean compact(Set live)
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream tout = null;
+        int n = 0;
+        try
+        {
+            tout = new FileOutputStream(tmp);
+            byte[] buf = new byte[RECORD_SIZE * live.size() + COMMIT_RECORD_SIZE * committed.size()];
+            int off = 0;
+            for (Iterator iter = live.iterator(); iter.hasNext();)
+            {
+                Integer xid = (Integer) iter.next();
+                encode(buf, off, BEGIN, xid.intValue());
+                off += RECORD_SIZE;
+                n++;
+                Long ts = (Long) committed.get(xid);
+                if (ts != null)
+                {
+                    encodeCommit(buf, off, xid.intValue(), ts.longValue());
+                    off += COMMIT_RECORD_SIZE;
+                    n++;
+                }
+            }
+            tout.write(buf, 0, off);
+            tout.getFD().sync();
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+        finally
+        {
+            try
+            {
+                if (tout != null)
+                    tout.close();
+            }
+            catch (IOException e1)
+            {
+            }
+        }
+        close();
+        if (!tmp.renameTo(file))
+            return false;
+        records = n;
+        return true;
+    }
+
+    public synchronized void close()
+    {
+        try
+        {
+            if (out != null)
+                out.close();
+        }
+        catch (IOException e)
+        {
+        }
+        out = null;
+    }
+
+    protected boolean append(byte type, int xid)
+    {
+        byte[] buf = new byte[RECORD_SIZE];
+        encode(buf, 0, type, xid);
+        return append(buf);
+    }
+
+    protected boolean append(byte[] buf)
+    {
+        try
+        {
+            if (out == null)
+            {
+                file.getParentFile().mkdirs();
+                out = new FileOutputStream(file, true);
+            }
+            out.write(buf);
+            records++;
+            return true;
+        }
+        catch (IOException e)
+        {
+            close();
+            return false;
+        }
+    }
+
+    protected void truncate(long length)
+    {
+        close();
+        RandomAccessFile raf = null;
+        try
+        {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(length);
+            raf.getFD().sync();
+        }
+        catch (IOException e)
+        {
+            System.err.println("Can't truncate " + file + ": " + e.getMessage());
+        }
+        finally
+        {
+            try
+            {
+                if (raf != null)
+                    raf.close();
+            }
+            catch (IOException e1)
+            {
+            }
+        }
+    }
+
+    protected static void encode(byte[] buf, int off, byte type, int xid)
+    {
+        buf[off] = type;
+        buf[off + 1] = (byte) (xid >>> 24);
+        buf[off + 2] = (byte) (xid >>> 16);
+        buf[off + 3] = (byte) (xid >>> 8);
+        buf[off + 4] = (byte) xid;
+    }
+
+    protected static void encodeCommit(byte[] buf, int off, int xid, long commitTs)
+    {
+        encode(buf, off, COMMIT, xid);
+        for (int i = 0; i < 8; i++)
+            buf[off + RECORD_SIZE + i] = (byte) (commitTs >>> (56 - 8 * i));
+    }
+}
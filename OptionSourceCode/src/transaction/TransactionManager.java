@@ -1,6 +1,7 @@
 package transaction;
 
 import java.rmi.*;
+import java.util.List;
 
 /** 
  * Interface for the Transaction Manager of the Distributed Travel
@@ -26,10 +27,80 @@ public interface TransactionManager extends Remote {
     public boolean dieNow()
 	throws RemoteException;
 
+    /**
+     * Starts a read-only transaction. It locks like any other, but its
+     * commit only asks each RM for a read-only vote, which releases the
+     * locks: nothing is logged. It aborts if an RM holds changes for it.
+     */
+    public int startReadOnly() throws RemoteException;
+
+    /**
+     * Starts a read-only transaction that reads a consistent snapshot of the
+     * committed data without locking.
+     */
+    public int startSnapshot() throws RemoteException;
+
+    public long getSnapshotTimestamp(int xid)
+        throws RemoteException,
+               InvalidTransactionException;
+
+    /** The oldest timestamp a running or future snapshot may read at. */
+    public long getSnapshotHorizon() throws RemoteException;
+
     public void ping() throws RemoteException;
+
+    /**
+     * Renews rmName's lease. An RM that lets its lease run out is taken as
+     * failed until it renews again.
+     *
+     * @return the lease duration in ms; renew well within it.
+     */
+    public long renewLease(String rmName, ResourceManager rm) throws RemoteException;
     
 	public void enlist(int xid, ResourceManager rm) throws RemoteException;
 
+    /**
+     * Tells a recovering RM what became of an xid it holds work for.
+     *
+     * @return the commit timestamp if xid committed, OUTCOME_ABORTED if it
+     *         aborted (or is unknown: presumed abort), or OUTCOME_ACTIVE if
+     *         it is still running and the RM should enlist again.
+     */
+    public long resolve(int xid, String rmName) throws RemoteException;
+
+    /**
+     * resolve for many xids in one call, for an RM recovering with a
+     * backlog of them. rm is enlisted again in those still running.
+     *
+     * @param xids Integers
+     * @return the outcome of each xid, as a Long, in the same order.
+     */
+    public List resolveInDoubt(List xids, String rmName, ResourceManager rm)
+        throws RemoteException;
+
+    /** Reports that rmName has applied the commit of xid. */
+    public void ackCommit(int xid, String rmName) throws RemoteException;
+
+    /**
+     * Asked by the RM committing xid in one phase before it forces its
+     * commit decision. From then on the TM treats xid as in doubt if it
+     * loses the RM, and learns the outcome from the RM.
+     *
+     * @return false if the TM has given up on the commit; the RM must
+     *         abort xid.
+     */
+    public boolean mayCommitOnePhase(int xid) throws RemoteException;
+
+    public static final long OUTCOME_ABORTED = -1;
+
+    public static final long OUTCOME_ACTIVE = -2;
+
+    /**
+     * Counters and per-phase and per-participant latencies, one line per
+     * histogram; the same figures are exported over JMX.
+     */
+    public String getMetrics() throws RemoteException;
+
     public void setDieTime(String time) throws RemoteException;
 
 	
@@ -1,15 +1,32 @@
 package transaction;
 
+import java.io.File;
 import java.io.FileInputStream;
+import java.lang.management.ManagementFactory;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.ObjectName;
 
 /** 
  * Transaction Manager for the Distributed Travel Reservation System.
@@ -23,18 +40,105 @@ public class TransactionManagerImpl
     private static final String DIE_BEFORE_COMMIT = "BeforeCommit";
     private static final String DIE_AFTER_COMMIT = "AfterCommit";
 
-    private int xidCounter = 1;
-    private final Map transactions = new HashMap();
+    private static final int DEFAULT_FANOUT_THREADS = 16;
+    private static final long DEFAULT_VOTE_TIMEOUT = 10000;
+    private static final int DEFAULT_XID_BLOCK = 1000;
+    private static final long DEFAULT_IDLE_TIMEOUT = 60000;
+    private static final long DEFAULT_TOTAL_TIMEOUT = 600000;
+    private static final long REAPER_INTERVAL = 1000;
+    private static final long DEFAULT_LEASE_DURATION = 3000;
+    // How many timed-out xids are remembered, to tell their clients why.
+    private static final int MAX_REAPED = 10000;
+
+    private static final String COORDINATOR_LOG_FILENAME = "data/coordinator.log";
+
+    // Xids are handed out from blocks reserved in the coordinator log, so
+    // they are never reused after a restart.
+    private final AtomicInteger nextXid = new AtomicInteger(1);
+    // Xids below this one are reserved.
+    private volatile int reservedXids = 1;
+    private final Object xidLock = new Object();
+    private final int xidBlock;
+    private final ConcurrentHashMap transactions = new ConcurrentHashMap();
     private String dieTime = DIE_NO;
 
+    // Commit timestamps order committed transactions for snapshot reads.
+    private long lastCommitTs = 0;
+    // Timestamps of transactions whose commit has not reached every RM yet.
+    private final TreeSet committingTs = new TreeSet();
+
+    // Prepare, commit and abort go to all participants at once on this pool.
+    private final ThreadPoolExecutor rmCalls;
+    // How long commit waits for the prepare votes, in ms.
+    private final long voteTimeout;
+
+    // Commit decisions; aborts are presumed and never logged.
+    private final CoordinatorLog log = new CoordinatorLog(new File(COORDINATOR_LOG_FILENAME));
+    // xid -> CoordinatorLog.Decision for logged commits not yet applied by
+    // every participant.
+    private final Map decided = new HashMap();
+    // RMI name of each participant, asked once per RM incarnation.
+    private final Map rmNames = new ConcurrentHashMap();
+    // RM name -> Lease. An RM whose lease has run out is taken as failed.
+    private final Map leases = new ConcurrentHashMap();
+    private final long leaseDuration;
+    // Xids whose phase two is in flight; the redrive thread leaves them be.
+    private final Set delivering = new HashSet();
+    // One-phase commits whose participant was lost after it was let
+    // commit: the redrive thread asks it what it did once it is back.
+    private final Set inDoubt = new HashSet();
+    // Whether the redrive thread is running.
+    private boolean redriving = false;
+    // Return from commit once the decision is logged, and deliver it to
+    // the participants in the background.
+    private final boolean asyncCommit;
+
+    private final TransactionMetrics metrics = new TransactionMetrics();
+
+    // Transactions idle this long, or running this long, are aborted; in
+    // ms, 0 for no limit.
+    private final long idleTimeout;
+    private final long totalTimeout;
+    // Recently timed-out xids, oldest first.
+    private final Map reaped = new LinkedHashMap() {
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            return size() > MAX_REAPED;
+        }
+    };
+
+    // One call to one participant, run on the fan-out pool.
+    private interface RMCall {
+        Object call(ResourceManager rm) throws Exception;
+    }
+
+    private static class Lease {
+        final ResourceManager rm;
+        volatile long expires;
+
+        Lease(ResourceManager rm) {
+            this.rm = rm;
+        }
+    }
+
     private static class TransactionRecord {
         static final int ACTIVE = 1;
         static final int PREPARING = 2;
         static final int COMMITTED = 3;
         static final int ABORTED = 4;
+        // The one participant has been let commit on its own.
+        static final int DECIDING = 5;
 
-        int state = ACTIVE;
-        final Set participants = new HashSet();
+        volatile int state = ACTIVE;
+        final Set participants = ConcurrentHashMap.newKeySet();
+        // -1 unless this is a snapshot transaction
+        long snapshotTs = -1;
+        boolean readOnly = false;
+        final long startTime = System.currentTimeMillis();
+        // Last activity seen by the TM or reported by a participant.
+        volatile long lastActive = startTime;
+        // Set while committing in one phase.
+        ResourceManager onePhase;
+        Long commitTs;
     }
 
     public static void main(String args[]) {
@@ -49,8 +153,10 @@ public class TransactionManagerImpl
         String rmiPort = prop.getProperty("tm.port");
         try {
             Registry registry = LocateRegistry.createRegistry(Integer.parseInt(rmiPort));
-            TransactionManagerImpl obj = new TransactionManagerImpl();
+            TransactionManagerImpl obj = new TransactionManagerImpl(prop);
             registry.rebind(TransactionManager.RMIName, obj);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(obj.metrics,
+                new ObjectName("transaction:type=TransactionManager"));
             System.out.println("TM bound");
         } catch (Exception e) {
             System.err.println("TM not bound:" + e);
@@ -59,36 +165,352 @@ public class TransactionManagerImpl
     }
 
     public TransactionManagerImpl() throws RemoteException {
+        this(new Properties());
+    }
+
+    public TransactionManagerImpl(Properties prop) throws RemoteException {
+        int threads = Integer.parseInt(prop.getProperty("tm.fanout.threads", "" + DEFAULT_FANOUT_THREADS).trim());
+        voteTimeout = Long.parseLong(prop.getProperty("tm.vote.timeout", "" + DEFAULT_VOTE_TIMEOUT).trim());
+        xidBlock = Integer.parseInt(prop.getProperty("tm.xid.block", "" + DEFAULT_XID_BLOCK).trim());
+        idleTimeout = Long.parseLong(prop.getProperty("tm.timeout.idle", "" + DEFAULT_IDLE_TIMEOUT).trim());
+        totalTimeout = Long.parseLong(prop.getProperty("tm.timeout.total", "" + DEFAULT_TOTAL_TIMEOUT).trim());
+        leaseDuration = Long.parseLong(prop.getProperty("tm.lease.duration", "" + DEFAULT_LEASE_DURATION).trim());
+        asyncCommit = Boolean.valueOf(prop.getProperty("tm.commit.async", "false").trim()).booleanValue();
+        rmCalls = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue(),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "tm-fanout");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        rmCalls.allowCoreThreadTimeOut(true);
+        recover();
+        if (idleTimeout > 0 || totalTimeout > 0) {
+            Thread t = new Thread("tm-reaper") {
+                public void run() {
+                    while (true) {
+                        try {
+                            Thread.sleep(REAPER_INTERVAL);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        reap();
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Reloads the commit decisions whose participants may not all have
+     * applied them, and pushes them to those participants in the
+     * background.
+     */
+    private void recover() {
+        decided.putAll(log.replay());
+        // Not applied everywhere yet: keep snapshots from reading past them.
+        for (Iterator iter = decided.values().iterator(); iter.hasNext();) {
+            committingTs.add(new Long(((CoordinatorLog.Decision) iter.next()).commitTs));
+        }
+        // Skip whatever was left of the last reserved block.
+        nextXid.set(log.getMaxXid() + 1);
+        reservedXids = nextXid.get();
+        // Timestamps must keep growing across restarts, past the one-phase
+        // commits too, which are not logged.
+        lastCommitTs = Math.max(log.getMaxCommitTs(), System.currentTimeMillis() * 1000);
+        if (decided.isEmpty()) {
+            return;
+        }
+        System.out.println("TM recovering " + decided.size() + " committed transactions");
+        startRedrive();
+    }
+
+    /**
+     * Starts the thread that pushes logged commits to the participants that
+     * missed them, and learns the outcome of in-doubt one-phase commits,
+     * unless it is already running.
+     */
+    private synchronized void startRedrive() {
+        if (redriving) {
+            return;
+        }
+        redriving = true;
+        Thread t = new Thread("tm-recovery") {
+            public void run() {
+                while (redrive()) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Sends each logged commit to the participants that have not
+     * acknowledged it, and asks the participant of each in-doubt one-phase
+     * commit what it decided.
+     *
+     * @return true if some are still unacknowledged or in doubt; the thread
+     *         stops otherwise.
+     */
+    private boolean redrive() {
+        List todo = new ArrayList();
+        List asks = new ArrayList();
+        synchronized (this) {
+            for (Iterator iter = inDoubt.iterator(); iter.hasNext();) {
+                Integer xid = (Integer) iter.next();
+                asks.add(new Object[] { xid, transactions.get(xid) });
+            }
+            for (Iterator iter = decided.values().iterator(); iter.hasNext();) {
+                CoordinatorLog.Decision d = (CoordinatorLog.Decision) iter.next();
+                if (delivering.contains(new Integer(d.xid))) {
+                    continue;
+                }
+                for (Iterator it = d.pending.iterator(); it.hasNext();) {
+                    todo.add(new Object[] { d, it.next() });
+                }
+            }
+        }
+        List pushes = new ArrayList();
+        for (Iterator iter = asks.iterator(); iter.hasNext();) {
+            Object[] item = (Object[]) iter.next();
+            final int xid = ((Integer) item[0]).intValue();
+            final TransactionRecord record = (TransactionRecord) item[1];
+            if (!isLive(record.onePhase)) {
+                // Lost, or not back yet: a new incarnation reports what it
+                // did when it reconnects.
+                continue;
+            }
+            pushes.add(rmCalls.submit(new Callable() {
+                public Object call() throws Exception {
+                    long outcome = record.onePhase.getOnePhaseOutcome(xid);
+                    if (outcome != OUTCOME_ACTIVE) {
+                        settleOnePhase(xid, record, outcome != OUTCOME_ABORTED);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Iterator iter = todo.iterator(); iter.hasNext();) {
+            Object[] item = (Object[]) iter.next();
+            final CoordinatorLog.Decision d = (CoordinatorLog.Decision) item[0];
+            final String name = (String) item[1];
+            final Lease lease = (Lease) leases.get(name);
+            if (lease == null || lease.expires <= System.currentTimeMillis()) {
+                // Not back yet; it resolves the xid itself when it is.
+                continue;
+            }
+            pushes.add(rmCalls.submit(new Callable() {
+                public Object call() throws Exception {
+                    lease.rm.commit(d.xid, d.commitTs);
+                    ackCommit(d.xid, name);
+                    return null;
+                }
+            }));
+        }
+        for (Iterator iter = pushes.iterator(); iter.hasNext();) {
+            try {
+                ((Future) iter.next()).get();
+            } catch (ExecutionException e) {
+                // Retried on the next pass.
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        synchronized (this) {
+            redriving = !decided.isEmpty() || !inDoubt.isEmpty();
+            return redriving;
+        }
     }
 
-    public synchronized int start() throws RemoteException {
-        int xid = xidCounter++;
+    public int start() throws RemoteException {
+        int xid = newXid();
+        metrics.started();
         transactions.put(new Integer(xid), new TransactionRecord());
         return xid;
     }
 
+    public int startReadOnly() throws RemoteException {
+        int xid = newXid();
+        metrics.started();
+        TransactionRecord record = new TransactionRecord();
+        record.readOnly = true;
+        transactions.put(new Integer(xid), record);
+        return xid;
+    }
+
+    public int startSnapshot() throws RemoteException {
+        int xid = newXid();
+        metrics.started();
+        TransactionRecord record = new TransactionRecord();
+        synchronized (this) {
+            if (asyncCommit) {
+                // Commits may have returned before reaching the RMs; wait
+                // until they have, so the snapshot includes them.
+                long ts = lastCommitTs;
+                while (stableTs() < ts) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new RemoteException("Interrupted while starting a snapshot");
+                    }
+                }
+            }
+            record.snapshotTs = stableTs();
+            // Publish the record before leaving the monitor: a concurrent
+            // getSnapshotHorizon either sees it, or has read a stableTs no
+            // later than snapshotTs.
+            transactions.put(new Integer(xid), record);
+        }
+        return xid;
+    }
+
+    /**
+     * Hands out the next xid. Only the first xid of each block costs a
+     * forced write, which reserves the whole block.
+     */
+    private int newXid() throws RemoteException {
+        int xid = nextXid.getAndIncrement();
+        if (xid < reservedXids) {
+            return xid;
+        }
+        synchronized (xidLock) {
+            if (xid >= reservedXids) {
+                int upTo = xid + xidBlock;
+                if (!log.reserveXids(upTo - 1)) {
+                    throw new RemoteException("Can't reserve xids: coordinator log not writable");
+                }
+                reservedXids = upTo;
+            }
+        }
+        return xid;
+    }
+
+    public long getSnapshotTimestamp(int xid)
+        throws RemoteException,
+               InvalidTransactionException {
+        TransactionRecord record = (TransactionRecord) transactions.get(new Integer(xid));
+        if (record == null || record.snapshotTs < 0) {
+            throw new InvalidTransactionException(xid, "Not a snapshot transaction.");
+        }
+        return record.snapshotTs;
+    }
+
+    public long getSnapshotHorizon() throws RemoteException {
+        long horizon;
+        synchronized (this) {
+            horizon = stableTs();
+        }
+        for (Iterator iter = transactions.values().iterator(); iter.hasNext();) {
+            TransactionRecord record = (TransactionRecord) iter.next();
+            if (record.snapshotTs >= 0 && record.snapshotTs < horizon) {
+                horizon = record.snapshotTs;
+            }
+        }
+        return horizon;
+    }
+
+    /**
+     * The newest timestamp whose transactions, and all before them, have
+     * been committed at every RM. Never decreases.
+     */
+    private long stableTs() {
+        if (committingTs.isEmpty()) {
+            return lastCommitTs;
+        }
+        return ((Long) committingTs.first()).longValue() - 1;
+    }
+
     public void ping() throws RemoteException {
     }
 
-    public synchronized void enlist(int xid, ResourceManager rm) throws RemoteException {
+    public long renewLease(String rmName, ResourceManager rm) throws RemoteException {
+        Lease lease = (Lease) leases.get(rmName);
+        if (lease == null || !lease.rm.equals(rm)) {
+            // A new RM, or a new incarnation of one.
+            lease = new Lease(rm);
+            leases.put(rmName, lease);
+            rmNames.put(rm, rmName);
+            System.out.println("TM granted a lease to " + rmName);
+        }
+        lease.expires = System.currentTimeMillis() + leaseDuration;
+        return leaseDuration;
+    }
+
+    /**
+     * @return true if rm holds an unexpired lease. Costs no remote call.
+     */
+    private boolean isLive(ResourceManager rm) {
+        String name = (String) rmNames.get(rm);
+        Lease lease = name == null ? null : (Lease) leases.get(name);
+        return lease != null && lease.rm.equals(rm) && lease.expires > System.currentTimeMillis();
+    }
+
+    public void enlist(int xid, ResourceManager rm) throws RemoteException {
+        if (!rmNames.containsKey(rm)) {
+            rmNames.put(rm, rm.getID());
+        }
         TransactionRecord record = (TransactionRecord) transactions.get(new Integer(xid));
         if (record == null) {
-            record = new TransactionRecord();
-            transactions.put(new Integer(xid), record);
+            synchronized (this) {
+                if (reaped.containsKey(new Integer(xid))) {
+                    throw new RemoteException("Transaction " + xid + " timed out");
+                }
+            }
+            TransactionRecord fresh = new TransactionRecord();
+            record = (TransactionRecord) transactions.putIfAbsent(new Integer(xid), fresh);
+            if (record == null) {
+                record = fresh;
+            }
+        }
+        record.lastActive = System.currentTimeMillis();
+        if (record.participants.add(rm)) {
+            // A recovered RM takes over the xids of its previous incarnation.
+            String name = (String) rmNames.get(rm);
+            for (Iterator iter = record.participants.iterator(); iter.hasNext();) {
+                Object other = iter.next();
+                if (!other.equals(rm) && name.equals(rmNames.get(other))) {
+                    iter.remove();
+                }
+            }
+        }
+        // The reaper marks the record before it reads the participants, so
+        // either it aborts rm too or we see the mark here.
+        if (record.state == TransactionRecord.ABORTED) {
+            throw new RemoteException("Transaction " + xid + " timed out");
         }
-        record.participants.add(rm);
     }
 
-    public boolean commit(int xid)
+    public boolean commit(final int xid)
         throws RemoteException,
                TransactionAbortedException,
                InvalidTransactionException {
         TransactionRecord record;
         Set participants;
 
-        synchronized (this) {
-            record = (TransactionRecord) transactions.get(new Integer(xid));
-            if (record == null || record.state == TransactionRecord.ABORTED || record.state == TransactionRecord.COMMITTED) {
+        record = (TransactionRecord) transactions.get(new Integer(xid));
+        if (record == null) {
+            synchronized (this) {
+                if (reaped.containsKey(new Integer(xid))) {
+                    throw new TransactionAbortedException(xid, "Timed out.");
+                }
+            }
+            throw new InvalidTransactionException(xid, "Xid is not active.");
+        }
+        synchronized (record) {
+            if (record.state == TransactionRecord.ABORTED) {
+                throw new TransactionAbortedException(xid, "Timed out.");
+            }
+            if (record.state != TransactionRecord.ACTIVE) {
                 throw new InvalidTransactionException(xid, "Xid is not active.");
             }
             if (DIE_BEFORE_COMMIT.equals(dieTime)) {
@@ -98,79 +520,581 @@ public class TransactionManagerImpl
             participants = new HashSet(record.participants);
         }
 
-        boolean prepared = true;
+        if (record.readOnly) {
+            return commitReadOnly(xid, record, participants);
+        }
+
+        Set lapsed = new HashSet();
         for (Iterator iter = participants.iterator(); iter.hasNext();) {
             ResourceManager rm = (ResourceManager) iter.next();
+            if (!isLive(rm)) {
+                lapsed.add(rm);
+            }
+        }
+        if (!lapsed.isEmpty()) {
+            // Failed, or cut off: it could not prepare in time anyway. A hung
+            // RM gets its abort whenever it wakes up; nobody waits for it.
+            participants.removeAll(lapsed);
+            fanOut(lapsed, "abort", new RMCall() {
+                public Object call(ResourceManager rm) throws Exception {
+                    rm.abort(xid);
+                    return null;
+                }
+            });
+            abortInternal(xid, participants);
+            synchronized (this) {
+                record.state = TransactionRecord.ABORTED;
+                transactions.remove(new Integer(xid));
+                notifyAll();
+            }
+            metrics.aborted("lease");
+            throw new TransactionAbortedException(xid, "A participant's lease has expired.");
+        }
+
+        if (participants.size() == 1) {
+            return commitOnePhase(xid, record, (ResourceManager) participants.iterator().next());
+        }
+
+        boolean prepared = true;
+        long prepareStart = System.nanoTime();
+        Map votes = fanOut(participants, "prepare", new RMCall() {
+            public Object call(ResourceManager rm) throws Exception {
+                return new Integer(rm.prepare(xid));
+            }
+        });
+        long deadline = System.currentTimeMillis() + voteTimeout;
+        for (Iterator iter = votes.entrySet().iterator(); iter.hasNext() && prepared;) {
+            Map.Entry entry = (Map.Entry) iter.next();
+            Future future = (Future) entry.getValue();
             try {
-                if (!rm.prepare(xid)) {
+                long wait = Math.max(0, deadline - System.currentTimeMillis());
+                int vote = ((Integer) future.get(wait, TimeUnit.MILLISECONDS)).intValue();
+                if (vote == ResourceManager.VOTE_READ_ONLY) {
+                    // The RM has released xid and sits out phase two.
+                    participants.remove(entry.getKey());
+                } else if (vote != ResourceManager.VOTE_COMMIT) {
                     prepared = false;
                 }
             } catch (Exception e) {
+                // Failed, or no vote by the deadline.
                 prepared = false;
             }
         }
+        metrics.record("prepare", prepareStart);
 
         if (!prepared) {
-            abortInternal(xid, participants);
+            // Wait no longer than the vote deadline: an RM that did not vote
+            // may not answer the abort either.
+            abortInternal(xid, participants, deadline);
             synchronized (this) {
                 if (record != null) {
                     record.state = TransactionRecord.ABORTED;
                     transactions.remove(new Integer(xid));
+                    notifyAll();
                 }
             }
+            metrics.aborted("prepare");
             throw new TransactionAbortedException(xid, "Prepare failed.");
         }
 
+        if (participants.isEmpty()) {
+            synchronized (this) {
+                record.state = TransactionRecord.COMMITTED;
+                transactions.remove(new Integer(xid));
+                notifyAll();
+            }
+            metrics.committed();
+            return true;
+        }
+
+        Long commitTs;
+        synchronized (this) {
+            commitTs = new Long(++lastCommitTs);
+            committingTs.add(commitTs);
+        }
+
+        // The transaction commits once this record is on disk.
+        final long ts = commitTs.longValue();
+        Set names = new HashSet();
         for (Iterator iter = participants.iterator(); iter.hasNext();) {
-            ResourceManager rm = (ResourceManager) iter.next();
+            names.add(rmNames.get(iter.next()));
+        }
+        long logStart = System.nanoTime();
+        CoordinatorLog.Decision decision = log.commit(xid, ts, names);
+        metrics.record("log", logStart);
+        if (decision == null) {
+            abortInternal(xid, participants);
+            synchronized (this) {
+                record.state = TransactionRecord.ABORTED;
+                transactions.remove(new Integer(xid));
+                committingTs.remove(commitTs);
+                notifyAll();
+            }
+            metrics.aborted("log");
+            throw new TransactionAbortedException(xid, "Can't log the commit decision.");
+        }
+        synchronized (this) {
+            decided.put(new Integer(xid), decision);
+            delivering.add(new Integer(xid));
+            record.state = TransactionRecord.COMMITTED;
+            notifyAll();
+        }
+        metrics.committed();
+
+        Map acks = phaseTwo(xid, participants, commitTs);
+        if (!asyncCommit) {
+            awaitAll(acks);
+        }
+
+        if (DIE_AFTER_COMMIT.equals(dieTime)) {
+            dieNow();
+        }
+
+        return true;
+    }
+
+    /**
+     * Commits a read-only transaction. Each RM releases the locks of an xid
+     * that wrote nothing there as it votes VOTE_READ_ONLY, so nothing is
+     * logged. An RM that holds writes for xid, which the WC should have
+     * refused, or fails to validate its reads votes otherwise, and the
+     * transaction aborts. A lost RM has lost the locks too.
+     */
+    private boolean commitReadOnly(final int xid, TransactionRecord record, Set participants)
+        throws TransactionAbortedException {
+        Map votes = fanOut(participants, "prepare", new RMCall() {
+            public Object call(ResourceManager rm) throws Exception {
+                return new Integer(rm.prepare(xid));
+            }
+        });
+        long deadline = System.currentTimeMillis() + voteTimeout;
+        // RMs still holding xid
+        Set held = new HashSet();
+        for (Iterator iter = votes.entrySet().iterator(); iter.hasNext();) {
+            Map.Entry entry = (Map.Entry) iter.next();
             try {
-                rm.commit(xid);
+                long wait = Math.max(0, deadline - System.currentTimeMillis());
+                Integer vote = (Integer) ((Future) entry.getValue()).get(wait, TimeUnit.MILLISECONDS);
+                if (vote.intValue() != ResourceManager.VOTE_READ_ONLY) {
+                    held.add(entry.getKey());
+                }
             } catch (Exception e) {
-                // Best-effort commit; decision is already made.
+                // Failed, or no vote by the deadline: its locks are lost or
+                // released by the reaper.
             }
         }
-
+        if (!held.isEmpty()) {
+            abortInternal(xid, held, deadline);
+        }
         synchronized (this) {
-            record.state = TransactionRecord.COMMITTED;
+            record.state = held.isEmpty() ? TransactionRecord.COMMITTED : TransactionRecord.ABORTED;
             transactions.remove(new Integer(xid));
+            notifyAll();
+        }
+        if (!held.isEmpty()) {
+            metrics.aborted("prepare");
+            throw new TransactionAbortedException(xid, "Prepare failed.");
+        }
+        metrics.committed();
+        return true;
+    }
+
+    /**
+     * Commits a transaction with a single participant: that RM decides
+     * alone, so prepare and commit go in one call.
+     */
+    private boolean commitOnePhase(int xid, TransactionRecord record, ResourceManager rm)
+        throws RemoteException, TransactionAbortedException {
+        synchronized (this) {
+            record.commitTs = new Long(++lastCommitTs);
+            record.onePhase = rm;
+            committingTs.add(record.commitTs);
+        }
+
+        long start = System.nanoTime();
+        try {
+            boolean committed = rm.commitOnePhase(xid, record.commitTs.longValue());
+            metrics.record("rpc." + rmNames.get(rm) + ".commitOnePhase", start);
+            settleOnePhase(xid, record, committed);
+        } catch (Exception e) {
+            if (!awaitOnePhase(xid, record, rm)) {
+                throw new TransactionInDoubtException(xid, "Lost " + rmNames.get(rm)
+                    + " while it committed; its outcome is not known yet.");
+            }
+        }
+        if (record.state != TransactionRecord.COMMITTED) {
+            throw new TransactionAbortedException(xid, "Prepare failed.");
         }
 
         if (DIE_AFTER_COMMIT.equals(dieTime)) {
             dieNow();
         }
+        return true;
+    }
 
+    public synchronized boolean mayCommitOnePhase(int xid) throws RemoteException {
+        TransactionRecord record = (TransactionRecord) transactions.get(new Integer(xid));
+        if (record == null || record.onePhase == null || record.state != TransactionRecord.PREPARING) {
+            // Given up on: its client has been told it aborted.
+            return false;
+        }
+        record.state = TransactionRecord.DECIDING;
         return true;
     }
 
+    /**
+     * Learns the outcome of a one-phase commit whose call failed. An RM
+     * that had not asked to commit never will, so xid aborted. One that
+     * had may have committed, and only it can tell: it is asked once its
+     * lease is renewed, and a new incarnation reports what it did when it
+     * reconnects. Until then commitTs holds back the stable timestamp.
+     *
+     * @return false if the outcome is still unknown after voteTimeout; it
+     *         is then learned in the background.
+     */
+    private boolean awaitOnePhase(int xid, TransactionRecord record, ResourceManager rm) {
+        boolean refused = false;
+        synchronized (this) {
+            if (record.state == TransactionRecord.PREPARING) {
+                refused = settleOnePhase(xid, record, false);
+            } else if (record.state == TransactionRecord.DECIDING) {
+                inDoubt.add(new Integer(xid));
+                startRedrive();
+            }
+        }
+        if (refused) {
+            // In case it is still reachable.
+            Set participants = new HashSet();
+            participants.add(rm);
+            abortInternal(xid, participants);
+            return true;
+        }
+        long deadline = System.currentTimeMillis() + voteTimeout;
+        synchronized (this) {
+            while (record.state == TransactionRecord.DECIDING) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records the outcome of a one-phase commit and retires it.
+     *
+     * @return false if it was settled already.
+     */
+    private synchronized boolean settleOnePhase(int xid, TransactionRecord record, boolean committed) {
+        if (record.state == TransactionRecord.COMMITTED || record.state == TransactionRecord.ABORTED) {
+            return false;
+        }
+        record.state = committed ? TransactionRecord.COMMITTED : TransactionRecord.ABORTED;
+        transactions.remove(new Integer(xid));
+        committingTs.remove(record.commitTs);
+        inDoubt.remove(new Integer(xid));
+        notifyAll();
+        if (committed) {
+            metrics.committed();
+        } else {
+            metrics.aborted("prepare");
+        }
+        return true;
+    }
+
+    /**
+     * Sends the logged commit of xid to its participants. Each
+     * acknowledges as soon as it has applied it; the last one to finish
+     * retires the transaction. A participant that misses the commit gets it
+     * from the redrive thread, or asks for it when it recovers; commitTs
+     * stays in committingTs until every participant has acknowledged.
+     *
+     * @return participant -> Future of its commit
+     */
+    private Map phaseTwo(final int xid, Set participants, final Long commitTs) {
+        final AtomicInteger left = new AtomicInteger(participants.size());
+        final long start = System.nanoTime();
+        return fanOut(participants, "commit", new RMCall() {
+            public Object call(ResourceManager rm) throws Exception {
+                try {
+                    rm.commit(xid, commitTs.longValue());
+                    ackCommit(xid, (String) rmNames.get(rm));
+                } finally {
+                    if (left.decrementAndGet() == 0) {
+                        metrics.record("commit", start);
+                        synchronized (TransactionManagerImpl.this) {
+                            transactions.remove(new Integer(xid));
+                            delivering.remove(new Integer(xid));
+                            if (decided.containsKey(new Integer(xid))) {
+                                startRedrive();
+                            }
+                            TransactionManagerImpl.this.notifyAll();
+                        }
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
     public void abort(int xid) throws RemoteException, InvalidTransactionException {
         TransactionRecord record;
         Set participants;
 
-        synchronized (this) {
-            record = (TransactionRecord) transactions.get(new Integer(xid));
-            if (record == null) {
-                throw new InvalidTransactionException(xid, "Xid is not active.");
+        record = (TransactionRecord) transactions.get(new Integer(xid));
+        if (record == null) {
+            synchronized (this) {
+                if (reaped.containsKey(new Integer(xid))) {
+                    // Already aborted by the reaper.
+                    return;
+                }
             }
-            participants = new HashSet(record.participants);
+            throw new InvalidTransactionException(xid, "Xid is not active.");
+        }
+        if (record.state == TransactionRecord.DECIDING) {
+            throw new InvalidTransactionException(xid, "Xid is being committed.");
         }
+        participants = new HashSet(record.participants);
 
         abortInternal(xid, participants);
 
         synchronized (this) {
             record.state = TransactionRecord.ABORTED;
             transactions.remove(new Integer(xid));
+            notifyAll();
         }
+        metrics.aborted("client");
     }
 
-    private void abortInternal(int xid, Set participants) {
-        for (Iterator iter = participants.iterator(); iter.hasNext();) {
+    public synchronized long resolve(int xid, String rmName) throws RemoteException {
+        while (true) {
+            CoordinatorLog.Decision d = (CoordinatorLog.Decision) decided.get(new Integer(xid));
+            if (d != null) {
+                return d.commitTs;
+            }
+            TransactionRecord record = (TransactionRecord) transactions.get(new Integer(xid));
+            if (record != null && (record.state == TransactionRecord.ACTIVE || record.onePhase != null)) {
+                // Running, or being committed by the RM itself.
+                return OUTCOME_ACTIVE;
+            }
+            if (record == null || record.state != TransactionRecord.PREPARING) {
+                // Presumed abort: no commit record, so it did not commit.
+                return OUTCOME_ABORTED;
+            }
+            // Being committed: wait for the decision.
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new RemoteException("Interrupted while resolving " + xid);
+            }
+        }
+    }
+
+    public synchronized List resolveInDoubt(List xids, String rmName, ResourceManager rm) throws RemoteException {
+        rmNames.put(rm, rmName);
+        List outcomes = new ArrayList(xids.size());
+        for (Iterator iter = xids.iterator(); iter.hasNext();) {
+            int xid = ((Integer) iter.next()).intValue();
+            TransactionRecord record = (TransactionRecord) transactions.get(new Integer(xid));
+            if (record != null && record.onePhase != null && !rm.equals(record.onePhase)) {
+                // A new incarnation reports its one-phase commits before
+                // asking; holding xid without one, it never committed it.
+                settleOnePhase(xid, record, false);
+            }
+            long outcome = resolve(xid, rmName);
+            if (outcome == OUTCOME_ACTIVE) {
+                try {
+                    enlist(xid, rm);
+                } catch (RemoteException e) {
+                    // Timed out meanwhile.
+                    outcome = OUTCOME_ABORTED;
+                }
+            }
+            outcomes.add(new Long(outcome));
+        }
+        return outcomes;
+    }
+
+    public synchronized void ackCommit(int xid, String rmName) throws RemoteException {
+        CoordinatorLog.Decision d = (CoordinatorLog.Decision) decided.get(new Integer(xid));
+        if (d == null) {
+            TransactionRecord record = (TransactionRecord) transactions.get(new Integer(xid));
+            if (record != null && record.state == TransactionRecord.DECIDING) {
+                // Committed in one phase by an RM we lost.
+                settleOnePhase(xid, record, true);
+            }
+            return;
+        }
+        if (!d.pending.remove(rmName) || !d.pending.isEmpty()) {
+            return;
+        }
+        decided.remove(new Integer(xid));
+        committingTs.remove(new Long(d.commitTs));
+        notifyAll();
+        log.end(xid);
+        if (log.needsCompaction(decided.size())) {
+            log.compact();
+        }
+    }
+
+    /**
+     * Aborts the transactions that have run longer than totalTimeout or
+     * done nothing for idleTimeout, so that the locks and shadow tables of
+     * a crashed client do not outlive it.
+     */
+    private void reap() {
+        long now = System.currentTimeMillis();
+        for (Iterator iter = transactions.entrySet().iterator(); iter.hasNext();) {
+            Map.Entry entry = (Map.Entry) iter.next();
+            int xid = ((Integer) entry.getKey()).intValue();
+            TransactionRecord record = (TransactionRecord) entry.getValue();
+            if (record.state != TransactionRecord.ACTIVE) {
+                continue;
+            }
+            if (totalTimeout > 0 && now - record.startTime > totalTimeout) {
+                expire(xid, record, "ran for more than " + totalTimeout + " ms");
+            } else if (idleTimeout > 0 && now - record.lastActive > idleTimeout
+                       && record.snapshotTs < 0 && isIdle(xid, record)) {
+                // Snapshot reads never reach the TM or lock anything, so
+                // only the total limit applies to them.
+                expire(xid, record, "idle for more than " + idleTimeout + " ms");
+            }
+        }
+    }
+
+    /**
+     * The RMs see every operation but enlist only once, so ask them how
+     * long xid has been idle. An RM that has no lease or does not answer
+     * has lost xid's locks anyway.
+     */
+    private boolean isIdle(final int xid, TransactionRecord record) {
+        Set live = new HashSet();
+        for (Iterator iter = record.participants.iterator(); iter.hasNext();) {
             ResourceManager rm = (ResourceManager) iter.next();
+            if (isLive(rm)) {
+                live.add(rm);
+            }
+        }
+        Map idle = fanOut(live, "getIdleTime", new RMCall() {
+            public Object call(ResourceManager rm) throws Exception {
+                return new Long(rm.getIdleTime(xid));
+            }
+        });
+        long deadline = System.currentTimeMillis() + voteTimeout;
+        for (Iterator iter = idle.values().iterator(); iter.hasNext();) {
             try {
-                rm.abort(xid);
+                long wait = Math.max(0, deadline - System.currentTimeMillis());
+                long ms = ((Long) ((Future) iter.next()).get(wait, TimeUnit.MILLISECONDS)).longValue();
+                if (ms != Long.MAX_VALUE) {
+                    record.lastActive = Math.max(record.lastActive, System.currentTimeMillis() - ms);
+                }
             } catch (Exception e) {
-                // Best-effort abort.
+                // Counts as idle.
             }
         }
+        return System.currentTimeMillis() - record.lastActive > idleTimeout;
+    }
+
+    private void expire(int xid, TransactionRecord record, String why) {
+        synchronized (record) {
+            if (record.state != TransactionRecord.ACTIVE) {
+                // Commit got there first.
+                return;
+            }
+            record.state = TransactionRecord.ABORTED;
+        }
+        System.out.println("TM aborting transaction " + xid + ": " + why);
+        metrics.aborted("timeout");
+        abortInternal(xid, new HashSet(record.participants));
+        synchronized (this) {
+            reaped.put(new Integer(xid), Boolean.TRUE);
+            transactions.remove(new Integer(xid));
+            notifyAll();
+        }
+    }
+
+    private void abortInternal(int xid, Set participants) {
+        abortInternal(xid, participants, System.currentTimeMillis() + voteTimeout);
+    }
+
+    /**
+     * Best-effort abort. Waits for the participants until deadline at the
+     * latest; the calls still running go on in the background, and an RM
+     * that never gets its abort presumes it when it recovers.
+     */
+    private void abortInternal(final int xid, Set participants, long deadline) {
+        awaitAll(fanOut(participants, "abort", new RMCall() {
+            public Object call(ResourceManager rm) throws Exception {
+                rm.abort(xid);
+                return null;
+            }
+        }), deadline);
+    }
+
+    /**
+     * Starts call on every participant in parallel, timing each one under
+     * "rpc.&lt;RM name&gt;.&lt;op&gt;".
+     *
+     * @return participant -> Future of its result
+     */
+    private Map fanOut(Set participants, final String op, final RMCall call) {
+        Map futures = new HashMap();
+        for (Iterator iter = participants.iterator(); iter.hasNext();) {
+            final ResourceManager rm = (ResourceManager) iter.next();
+            futures.put(rm, rmCalls.submit(new Callable() {
+                public Object call() throws Exception {
+                    long start = System.nanoTime();
+                    try {
+                        return call.call(rm);
+                    } finally {
+                        metrics.record("rpc." + rmNames.get(rm) + "." + op, start);
+                    }
+                }
+            }));
+        }
+        return futures;
+    }
+
+    /**
+     * Waits for every call started by fanOut, ignoring their failures.
+     */
+    private void awaitAll(Map futures) {
+        awaitAll(futures, Long.MAX_VALUE);
+    }
+
+    /**
+     * Waits for the calls started by fanOut until deadline, a
+     * System.currentTimeMillis() reading, at the latest.
+     */
+    private void awaitAll(Map futures, long deadline) {
+        for (Iterator iter = futures.values().iterator(); iter.hasNext();) {
+            Future future = (Future) iter.next();
+            try {
+                if (deadline == Long.MAX_VALUE) {
+                    future.get();
+                } else {
+                    long wait = Math.max(0, deadline - System.currentTimeMillis());
+                    future.get(wait, TimeUnit.MILLISECONDS);
+                }
+            } catch (ExecutionException e) {
+                // Best-effort: the caller has made its decision.
+            } catch (TimeoutException e) {
+                // Left to finish in the background.
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public String getMetrics() throws RemoteException {
+        return metrics.getReport();
     }
 
     public void setDieTime(String time) throws RemoteException {
@@ -0,0 +1,199 @@
+package transaction;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the Transaction Manager.
+ * <p>
+ * Latencies are kept per phase ("prepare", "commit", "log") and per
+ * participant call ("rpc.RMFlights.prepare", ...), so that the RM slowing
+ * down a two-phase commit round stands out. Recording takes no lock.
+ */
+public class TransactionMetrics implements TransactionMetricsMBean
+{
+    /**
+     * Latencies in power-of-two buckets of microseconds. Percentiles are
+     * reported as the upper bound of their bucket.
+     */
+    public static class Histogram
+    {
+        protected final static int BUCKETS = 40;
+
+        protected final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        protected final AtomicLong count = new AtomicLong();
+
+        protected final AtomicLong totalMicros = new AtomicLong();
+
+        protected final AtomicLong maxMicros = new AtomicLong();
+
+        public void record(long nanos)
+        {
+            long micros = Math.max(0, nanos / 1000);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            totalMicros.addAndGet(micros);
+            long max;
+            while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros))
+                ;
+        }
+
+        public long getCount()
+        {
+            return count.get();
+        }
+
+        /** @return an upper bound, in microseconds, of the p-th percentile. */
+        public long percentile(double p)
+        {
+            long n = count.get();
+            if (n == 0)
+                return 0;
+            long rank = (long) Math.ceil(p * n);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                seen += buckets.get(i);
+                if (seen >= rank)
+                    return Math.min(1L << i, maxMicros.get());
+            }
+            return maxMicros.get();
+        }
+
+        public String summary()
+        {
+            long n = count.get();
+            return "count=" + n
+                + " mean=" + ms(n == 0 ? 0 : totalMicros.get() / n)
+                + " p50<=" + ms(percentile(0.5))
+                + " p99<=" + ms(percentile(0.99))
+                + " max=" + ms(maxMicros.get());
+        }
+
+        protected static String ms(long micros)
+        {
+            return (micros / 1000) + "." + (micros % 1000 / 100) + "ms";
+        }
+    }
+
+    protected final AtomicLong started = new AtomicLong();
+
+    protected final AtomicLong committed = new AtomicLong();
+
+    protected final AtomicLong aborted = new AtomicLong();
+
+    /** reason -> AtomicLong */
+    protected final ConcurrentHashMap abortReasons = new ConcurrentHashMap();
+
+    /** name -> Histogram */
+    protected final ConcurrentHashMap histograms = new ConcurrentHashMap();
+
+    public void started()
+    {
+        started.incrementAndGet();
+    }
+
+    public void committed()
+    {
+        committed.incrementAndGet();
+    }
+
+    public void aborted(String reason)
+    {
+        aborted.incrementAndGet();
+        AtomicLong n = (AtomicLong) abortReasons.get(reason);
+        if (n == null)
+        {
+            abortReasons.putIfAbsent(reason, new AtomicLong());
+            n = (AtomicLong) abortReasons.get(reason);
+        }
+        n.incrementAndGet();
+    }
+
+    /**
+     * Records the time since startNanos, a System.nanoTime() reading, in
+     * the histogram called name.
+     */
+    public void record(String name, long startNanos)
+    {
+        Histogram h = (Histogram) histograms.get(name);
+        if (h == null)
+        {
+            histograms.putIfAbsent(name, new Histogram());
+            h = (Histogram) histograms.get(name);
+        }
+        h.record(System.nanoTime() - startNanos);
+    }
+
+    public long getStarted()
+    {
+        return started.get();
+    }
+
+    public long getCommitted()
+    {
+        return committed.get();
+    }
+
+    public long getAborted()
+    {
+        return aborted.get();
+    }
+
+    public String getAbortReasons()
+    {
+        StringBuffer buf = new StringBuffer();
+        for (Iterator iter = new TreeMap(abortReasons).entrySet().iterator(); iter.hasNext();)
+        {
+            Map.Entry entry = (Map.Entry) iter.next();
+            if (buf.length() > 0)
+                buf.append(' ');
+            buf.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return buf.toString();
+    }
+
+    public String[] getLatencies()
+    {
+        Map sorted = new TreeMap(histograms);
+        String[] lines = new String[sorted.size()];
+        int i = 0;
+        for (Iterator iter = sorted.entrySet().iterator(); iter.hasNext();)
+        {
+            Map.Entry entry = (Map.Entry) iter.next();
+            lines[i++] = entry.getKey() + " " + ((Histogram) entry.getValue()).summary();
+        }
+        return lines;
+    }
+
+    public String getReport()
+    {
+        StringBuffer buf = new StringBuffer();
+        buf.append("started=").append(getStarted());
+        buf.append(" committed=").append(getCommitted());
+        buf.append(" aborted=").append(getAborted());
+        String reasons = getAbortReasons();
+        if (reasons.length() > 0)
+            buf.append(" (").append(reasons).append(')');
+        buf.append('\n');
+        String[] lines = getLatencies();
+        for (int i = 0; i < lines.length; i++)
+            buf.append(lines[i]).append('\n');
+        return buf.toString();
+    }
+
+    public void reset()
+    {
+        started.set(0);
+        committed.set(0);
+        aborted.set(0);
+        abortReasons.clear();
+        histograms.clear();
+    }
+}
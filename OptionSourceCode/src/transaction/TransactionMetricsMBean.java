@@ -0,0 +1,25 @@
+package transaction;
+
+/**
+ * JMX view of the Transaction Manager's metrics, registered as
+ * transaction:type=TransactionManager.
+ */
+public interface TransactionMetricsMBean
+{
+    public long getStarted();
+
+    public long getCommitted();
+
+    public long getAborted();
+
+    /** Aborts by reason, e.g. "client=3 prepare=1". */
+    public String getAbortReasons();
+
+    /** One summary line per latency histogram, sorted by name. */
+    public String[] getLatencies();
+
+    /** Everything above, as returned by TransactionManager.getMetrics. */
+    public String getReport();
+
+    public void reset();
+}
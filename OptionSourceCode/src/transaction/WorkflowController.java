@@ -66,6 +66,31 @@ public interface WorkflowController extends Remote {
     public void abort(int xid)
 	throws RemoteException,
 	       InvalidTransactionException;
+    /**
+     * Start a read-only transaction.  It reads and locks like any other
+     * transaction, but committing it only releases its locks, without
+     * two-phase commit or logging.  Any update operation on it throws
+     * InvalidTransactionException.
+     *
+     * @return A unique transaction ID > 0.
+     *
+     * @throws RemoteException on communications failure.
+     */
+    public int startReadOnly()
+	throws RemoteException;
+    /**
+     * Start a read-only transaction that sees a consistent snapshot of
+     * the committed data as of its start.  Its queries take no locks and
+     * never block or abort because of concurrent updates.  Any update
+     * operation on it throws InvalidTransactionException.  End it with
+     * commit or abort.
+     *
+     * @return A unique transaction ID > 0.
+     *
+     * @throws RemoteException on communications failure.
+     */
+    public int startSnapshot()
+	throws RemoteException;
 
 
     //////////
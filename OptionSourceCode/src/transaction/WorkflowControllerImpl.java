@@ -3,11 +3,18 @@ package transaction;
 import java.io.FileInputStream;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
+import java.rmi.ServerException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import lockmgr.DeadlockException;
@@ -32,6 +39,11 @@ public class WorkflowControllerImpl
     protected ResourceManager rmCustomers = null;
     protected TransactionManager tm = null;
 
+    // snapshot transactions: xid -> snapshot timestamp
+    private final Hashtable snapshots = new Hashtable();
+    // read-only transactions: xid -> Boolean.TRUE
+    private final Hashtable readOnly = new Hashtable();
+
     public static void main(String args[]) {
         Properties prop = new Properties();
         try {
@@ -68,18 +80,48 @@ public class WorkflowControllerImpl
         return tm.start();
     }
 
+    public int startReadOnly() throws RemoteException {
+        ensureConnected();
+        int xid = tm.startReadOnly();
+        readOnly.put(new Integer(xid), Boolean.TRUE);
+        return xid;
+    }
+
+    public int startSnapshot() throws RemoteException {
+        ensureConnected();
+        int xid = tm.startSnapshot();
+        try {
+            snapshots.put(new Integer(xid), new Long(tm.getSnapshotTimestamp(xid)));
+        } catch (InvalidTransactionException e) {
+            throw new RemoteException("TM lost snapshot transaction " + xid, e);
+        }
+        return xid;
+    }
+
     public boolean commit(int xid)
         throws RemoteException,
                TransactionAbortedException,
                InvalidTransactionException {
         ensureConnected();
-        return tm.commit(xid);
+        snapshots.remove(new Integer(xid));
+        readOnly.remove(new Integer(xid));
+        try {
+            return tm.commit(xid);
+        } catch (ServerException e) {
+            // Pass an in-doubt commit on as such, not as a lost TM.
+            if (e.detail instanceof TransactionInDoubtException) {
+                throw (TransactionInDoubtException) e.detail;
+            }
+            throw e;
+        }
     }
 
     public void abort(int xid)
         throws RemoteException,
                InvalidTransactionException {
         ensureConnected();
+        snapshots.remove(new Integer(xid));
+        readOnly.remove(new Integer(xid));
         tm.abort(xid);
     }
 
@@ -92,6 +134,7 @@ public class WorkflowControllerImpl
             return false;
         }
         ensureConnected();
+        checkWritable(xid);
 
         try {
             Flight flight = (Flight) rmFlights.query(xid, TABLE_FLIGHTS, flightNum);
@@ -123,6 +166,7 @@ public class WorkflowControllerImpl
             return false;
         }
         ensureConnected();
+        checkWritable(xid);
 
         try {
             Flight flight = (Flight) rmFlights.query(xid, TABLE_FLIGHTS, flightNum);
@@ -135,6 +179,8 @@ public class WorkflowControllerImpl
             return rmFlights.delete(xid, TABLE_FLIGHTS, flightNum);
         } catch (DeadlockException e) {
             abortAndThrow(xid, "Deadlock in deleteFlight", e);
+        } catch (InvalidIndexException e) {
+            abortAndThrow(xid, "Index failure in deleteFlight", e);
         } catch (RemoteException e) {
             abortAndThrow(xid, "RM failure in deleteFlight", e);
         }
@@ -149,6 +195,7 @@ public class WorkflowControllerImpl
             return false;
         }
         ensureConnected();
+        checkWritable(xid);
 
         try {
             Hotel hotel = (Hotel) rmRooms.query(xid, TABLE_HOTELS, location);
@@ -180,6 +227,7 @@ public class WorkflowControllerImpl
             return false;
         }
         ensureConnected();
+        checkWritable(xid);
 
         try {
             Hotel hotel = (Hotel) rmRooms.query(xid, TABLE_HOTELS, location);
@@ -214,6 +262,7 @@ public class WorkflowControllerImpl
             return false;
         }
         ensureConnected();
+        checkWritable(xid);
 
         try {
             Car car = (Car) rmCars.query(xid, TABLE_CARS, location);
@@ -245,6 +294,7 @@ public class WorkflowControllerImpl
             return false;
         }
         ensureConnected();
+        checkWritable(xid);
 
         try {
             Car car = (Car) rmCars.query(xid, TABLE_CARS, location);
@@ -279,6 +329,7 @@ public class WorkflowControllerImpl
             return false;
         }
         ensureConnected();
+        checkWritable(xid);
 
         try {
             Customer cust = (Customer) rmCustomers.query(xid, TABLE_CUSTOMERS, custName);
@@ -303,46 +354,49 @@ public class WorkflowControllerImpl
             return false;
         }
         ensureConnected();
+        checkWritable(xid);
 
         try {
-            Customer cust = (Customer) rmCustomers.query(xid, TABLE_CUSTOMERS, custName);
+            List found = rmCustomers.execute(xid, Arrays.asList(new Operation[] {
+                    Operation.query(TABLE_CUSTOMERS, custName),
+                    Operation.query(TABLE_RESERVATIONS, Reservation.INDEX_CUSTNAME, custName) }));
+            Customer cust = (Customer) found.get(0);
             if (cust == null || cust.isDeleted()) {
                 return false;
             }
 
-            Collection reservations = rmCustomers.query(xid, TABLE_RESERVATIONS, Reservation.INDEX_CUSTNAME, custName);
-            for (Iterator iter = reservations.iterator(); iter.hasNext();) {
+            // one batch of give-backs per RM
+            List flightOps = new ArrayList();
+            List carOps = new ArrayList();
+            List roomOps = new ArrayList();
+            for (Iterator iter = ((Collection) found.get(1)).iterator(); iter.hasNext();) {
                 Reservation resv = (Reservation) iter.next();
                 if (resv.isDeleted()) {
                     continue;
                 }
                 String resvKey = resv.getResvKey();
                 if (resv.getResvType() == Reservation.RESERVATION_TYPE_FLIGHT) {
-                    Flight flight = (Flight) rmFlights.query(xid, TABLE_FLIGHTS, resvKey);
-                    if (flight != null && !flight.isDeleted()) {
-                        Flight updated = (Flight) flight.clone();
-                        updated.setNumAvail(flight.getNumAvail() + 1);
-                        rmFlights.update(xid, TABLE_FLIGHTS, resvKey, updated);
-                    }
+                    flightOps.add(Operation.adjustAvail(TABLE_FLIGHTS, resvKey, 1));
                 } else if (resv.getResvType() == Reservation.RESERVATION_TYPE_CAR) {
-                    Car car = (Car) rmCars.query(xid, TABLE_CARS, resvKey);
-                    if (car != null && !car.isDeleted()) {
-                        Car updated = (Car) car.clone();
-                        updated.setNumAvail(car.getNumAvail() + 1);
-                        rmCars.update(xid, TABLE_CARS, resvKey, updated);
-                    }
+                    carOps.add(Operation.adjustAvail(TABLE_CARS, resvKey, 1));
                 } else if (resv.getResvType() == Reservation.RESERVATION_TYPE_HOTEL) {
-                    Hotel hotel = (Hotel) rmRooms.query(xid, TABLE_HOTELS, resvKey);
-                    if (hotel != null && !hotel.isDeleted()) {
-                        Hotel updated = (Hotel) hotel.clone();
-                        updated.setNumAvail(hotel.getNumAvail() + 1);
-                        rmRooms.update(xid, TABLE_HOTELS, resvKey, updated);
-                    }
+                    roomOps.add(Operation.adjustAvail(TABLE_HOTELS, resvKey, 1));
                 }
-                rmCustomers.delete(xid, TABLE_RESERVATIONS, resv.getKey());
+            }
+            if (!flightOps.isEmpty()) {
+                rmFlights.execute(xid, flightOps);
+            }
+            if (!carOps.isEmpty()) {
+                rmCars.execute(xid, carOps);
+            }
+            if (!roomOps.isEmpty()) {
+                rmRooms.execute(xid, roomOps);
             }
 
-            return rmCustomers.delete(xid, TABLE_CUSTOMERS, custName);
+            List deleted = rmCustomers.execute(xid, Arrays.asList(new Operation[] {
+                    Operation.delete(TABLE_RESERVATIONS, Reservation.INDEX_CUSTNAME, custName),
+                    Operation.delete(TABLE_CUSTOMERS, custName) }));
+            return ((Boolean) deleted.get(1)).booleanValue();
         } catch (DeadlockException e) {
             abortAndThrow(xid, "Deadlock in deleteCustomer", e);
         } catch (InvalidIndexException e) {
@@ -364,7 +418,7 @@ public class WorkflowControllerImpl
         ensureConnected();
 
         try {
-            Flight flight = (Flight) rmFlights.query(xid, TABLE_FLIGHTS, flightNum);
+            Flight flight = (Flight) read(rmFlights, xid, TABLE_FLIGHTS, flightNum);
             if (flight == null || flight.isDeleted()) {
                 return 0;
             }
@@ -387,7 +441,7 @@ public class WorkflowControllerImpl
         ensureConnected();
 
         try {
-            Flight flight = (Flight) rmFlights.query(xid, TABLE_FLIGHTS, flightNum);
+            Flight flight = (Flight) read(rmFlights, xid, TABLE_FLIGHTS, flightNum);
             if (flight == null || flight.isDeleted()) {
                 return 0;
             }
@@ -410,7 +464,7 @@ public class WorkflowControllerImpl
         ensureConnected();
 
         try {
-            Hotel hotel = (Hotel) rmRooms.query(xid, TABLE_HOTELS, location);
+            Hotel hotel = (Hotel) read(rmRooms, xid, TABLE_HOTELS, location);
             if (hotel == null || hotel.isDeleted()) {
                 return 0;
             }
@@ -433,7 +487,7 @@ public class WorkflowControllerImpl
         ensureConnected();
 
         try {
-            Hotel hotel = (Hotel) rmRooms.query(xid, TABLE_HOTELS, location);
+            Hotel hotel = (Hotel) read(rmRooms, xid, TABLE_HOTELS, location);
             if (hotel == null || hotel.isDeleted()) {
                 return 0;
             }
@@ -456,7 +510,7 @@ public class WorkflowControllerImpl
         ensureConnected();
 
         try {
-            Car car = (Car) rmCars.query(xid, TABLE_CARS, location);
+            Car car = (Car) read(rmCars, xid, TABLE_CARS, location);
             if (car == null || car.isDeleted()) {
                 return 0;
             }
@@ -479,7 +533,7 @@ public class WorkflowControllerImpl
         ensureConnected();
 
         try {
-            Car car = (Car) rmCars.query(xid, TABLE_CARS, location);
+            Car car = (Car) read(rmCars, xid, TABLE_CARS, location);
             if (car == null || car.isDeleted()) {
                 return 0;
             }
@@ -503,21 +557,21 @@ public class WorkflowControllerImpl
 
         int total = 0;
         try {
-            Collection reservations = rmCustomers.query(xid, TABLE_RESERVATIONS, Reservation.INDEX_CUSTNAME, custName);
+            Collection reservations = readIndex(rmCustomers, xid, TABLE_RESERVATIONS, Reservation.INDEX_CUSTNAME, custName);
             for (Iterator iter = reservations.iterator(); iter.hasNext();) {
                 Reservation resv = (Reservation) iter.next();
                 if (resv.getResvType() == Reservation.RESERVATION_TYPE_FLIGHT) {
-                    Flight flight = (Flight) rmFlights.query(xid, TABLE_FLIGHTS, resv.getResvKey());
+                    Flight flight = (Flight) read(rmFlights, xid, TABLE_FLIGHTS, resv.getResvKey());
                     if (flight != null && !flight.isDeleted()) {
                         total += flight.getPrice();
                     }
                 } else if (resv.getResvType() == Reservation.RESERVATION_TYPE_CAR) {
-                    Car car = (Car) rmCars.query(xid, TABLE_CARS, resv.getResvKey());
+                    Car car = (Car) read(rmCars, xid, TABLE_CARS, resv.getResvKey());
                     if (car != null && !car.isDeleted()) {
                         total += car.getPrice();
                     }
                 } else if (resv.getResvType() == Reservation.RESERVATION_TYPE_HOTEL) {
-                    Hotel hotel = (Hotel) rmRooms.query(xid, TABLE_HOTELS, resv.getResvKey());
+                    Hotel hotel = (Hotel) read(rmRooms, xid, TABLE_HOTELS, resv.getResvKey());
                     if (hotel != null && !hotel.isDeleted()) {
                         total += hotel.getPrice();
                     }
@@ -543,24 +597,21 @@ public class WorkflowControllerImpl
             return false;
         }
         ensureConnected();
+        checkWritable(xid);
 
         try {
             if (!ensureCustomerExists(xid, custName)) {
                 return false;
             }
-            Flight flight = (Flight) rmFlights.query(xid, TABLE_FLIGHTS, flightNum);
-            if (flight == null || flight.isDeleted() || flight.getNumAvail() <= 0) {
-                return false;
-            }
             ReservationKey key = new ReservationKey(custName, Reservation.RESERVATION_TYPE_FLIGHT, flightNum);
             Reservation existing = (Reservation) rmCustomers.query(xid, TABLE_RESERVATIONS, key);
             if (existing != null && !existing.isDeleted()) {
                 return false;
             }
 
-            Flight updated = (Flight) flight.clone();
-            updated.setNumAvail(flight.getNumAvail() - 1);
-            rmFlights.update(xid, TABLE_FLIGHTS, flightNum, updated);
+            if (rmFlights.decrementIfAvailable(xid, TABLE_FLIGHTS, flightNum, 1) == null) {
+                return false;
+            }
 
             Reservation resv = new Reservation(custName, Reservation.RESERVATION_TYPE_FLIGHT, flightNum);
             return rmCustomers.insert(xid, TABLE_RESERVATIONS, resv);
@@ -580,24 +631,21 @@ public class WorkflowControllerImpl
             return false;
         }
         ensureConnected();
+        checkWritable(xid);
 
         try {
             if (!ensureCustomerExists(xid, custName)) {
                 return false;
             }
-            Car car = (Car) rmCars.query(xid, TABLE_CARS, location);
-            if (car == null || car.isDeleted() || car.getNumAvail() <= 0) {
-                return false;
-            }
             ReservationKey key = new ReservationKey(custName, Reservation.RESERVATION_TYPE_CAR, location);
             Reservation existing = (Reservation) rmCustomers.query(xid, TABLE_RESERVATIONS, key);
             if (existing != null && !existing.isDeleted()) {
                 return false;
             }
 
-            Car updated = (Car) car.clone();
-            updated.setNumAvail(car.getNumAvail() - 1);
-            rmCars.update(xid, TABLE_CARS, location, updated);
+            if (rmCars.decrementIfAvailable(xid, TABLE_CARS, location, 1) == null) {
+                return false;
+            }
 
             Reservation resv = new Reservation(custName, Reservation.RESERVATION_TYPE_CAR, location);
             return rmCustomers.insert(xid, TABLE_RESERVATIONS, resv);
@@ -617,24 +665,21 @@ public class WorkflowControllerImpl
             return false;
         }
         ensureConnected();
+        checkWritable(xid);
 
         try {
             if (!ensureCustomerExists(xid, custName)) {
                 return false;
             }
-            Hotel hotel = (Hotel) rmRooms.query(xid, TABLE_HOTELS, location);
-            if (hotel == null || hotel.isDeleted() || hotel.getNumAvail() <= 0) {
-                return false;
-            }
             ReservationKey key = new ReservationKey(custName, Reservation.RESERVATION_TYPE_HOTEL, location);
             Reservation existing = (Reservation) rmCustomers.query(xid, TABLE_RESERVATIONS, key);
             if (existing != null && !existing.isDeleted()) {
                 return false;
             }
 
-            Hotel updated = (Hotel) hotel.clone();
-            updated.setNumAvail(hotel.getNumAvail() - 1);
-            rmRooms.update(xid, TABLE_HOTELS, location, updated);
+            if (rmRooms.decrementIfAvailable(xid, TABLE_HOTELS, location, 1) == null) {
+                return false;
+            }
 
             Reservation resv = new Reservation(custName, Reservation.RESERVATION_TYPE_HOTEL, location);
             return rmCustomers.insert(xid, TABLE_RESERVATIONS, resv);
@@ -654,26 +699,141 @@ public class WorkflowControllerImpl
             return false;
         }
         ensureConnected();
+        checkWritable(xid);
 
+        // the legs, flights first, as reservations to make
+        List legs = new ArrayList();
         if (flightNumList != null) {
             for (Iterator iter = flightNumList.iterator(); iter.hasNext();) {
                 String flightNum = (String) iter.next();
-                if (!reserveFlight(xid, custName, flightNum)) {
+                if (flightNum == null) {
                     return false;
                 }
+                legs.add(new Reservation(custName, Reservation.RESERVATION_TYPE_FLIGHT, flightNum));
             }
         }
+        if ((needCar || needRoom) && location == null) {
+            return false;
+        }
         if (needCar) {
-            if (!reserveCar(xid, custName, location)) {
-                return false;
-            }
+            legs.add(new Reservation(custName, Reservation.RESERVATION_TYPE_CAR, location));
         }
         if (needRoom) {
-            if (!reserveRoom(xid, custName, location)) {
+            legs.add(new Reservation(custName, Reservation.RESERVATION_TYPE_HOTEL, location));
+        }
+        if (legs.isEmpty()) {
+            return true;
+        }
+
+        try {
+            // one RPC per RM: check the customer and existing reservations,
+            // take the units, then record the reservations
+            List checks = new ArrayList();
+            checks.add(Operation.query(TABLE_CUSTOMERS, custName));
+            HashSet seen = new HashSet();
+            for (Iterator iter = legs.iterator(); iter.hasNext();) {
+                Reservation resv = (Reservation) iter.next();
+                if (!seen.add(resv.getKey())) {
+                    return false;
+                }
+                checks.add(Operation.query(TABLE_RESERVATIONS, resv.getKey()));
+            }
+            List found = rmCustomers.execute(xid, checks);
+            Customer cust = (Customer) found.get(0);
+            if (cust == null || cust.isDeleted()) {
                 return false;
             }
+            for (int i = 1; i < found.size(); i++) {
+                if (found.get(i) != null) {
+                    return false;
+                }
+            }
+
+            List flightOps = new ArrayList();
+            List carOps = new ArrayList();
+            List roomOps = new ArrayList();
+            List inserts = new ArrayList();
+            for (Iterator iter = legs.iterator(); iter.hasNext();) {
+                Reservation resv = (Reservation) iter.next();
+                if (resv.getResvType() == Reservation.RESERVATION_TYPE_FLIGHT) {
+                    flightOps.add(Operation.decrementIfAvailable(TABLE_FLIGHTS, resv.getResvKey(), 1));
+                } else if (resv.getResvType() == Reservation.RESERVATION_TYPE_CAR) {
+                    carOps.add(Operation.decrementIfAvailable(TABLE_CARS, resv.getResvKey(), 1));
+                } else {
+                    roomOps.add(Operation.decrementIfAvailable(TABLE_HOTELS, resv.getResvKey(), 1));
+                }
+                inserts.add(Operation.insert(TABLE_RESERVATIONS, resv));
+            }
+            // RM -> adjustAvail operations giving back the units taken
+            Map givebacks = new LinkedHashMap();
+            if (!allTaken(rmFlights, xid, flightOps, givebacks) || !allTaken(rmCars, xid, carOps, givebacks)
+                    || !allTaken(rmRooms, xid, roomOps, givebacks)) {
+                giveBack(xid, givebacks);
+                return false;
+            }
+            if (inserts.isEmpty()) {
+                return true;
+            }
+            List inserted = rmCustomers.execute(xid, inserts);
+            if (inserted.contains(Boolean.FALSE)) {
+                List deletes = new ArrayList();
+                for (int i = 0; i < inserted.size(); i++) {
+                    if (Boolean.TRUE.equals(inserted.get(i))) {
+                        deletes.add(Operation.delete(TABLE_RESERVATIONS, ((Reservation) legs.get(i)).getKey()));
+                    }
+                }
+                if (!deletes.isEmpty()) {
+                    rmCustomers.execute(xid, deletes);
+                }
+                giveBack(xid, givebacks);
+                return false;
+            }
+            return true;
+        } catch (DeadlockException e) {
+            abortAndThrow(xid, "Deadlock in reserveItinerary", e);
+        } catch (InvalidIndexException e) {
+            abortAndThrow(xid, "Index failure in reserveItinerary", e);
+        } catch (RemoteException e) {
+            abortAndThrow(xid, "RM failure in reserveItinerary", e);
+        }
+        return false;
+    }
+
+    /**
+     * Runs a batch of decrementIfAvailable operations, adding to givebacks,
+     * under rm, one adjustAvail per unit taken that undoes it.
+     *
+     * @return false if any row had no units left.
+     */
+    private boolean allTaken(ResourceManager rm, int xid, List ops, Map givebacks)
+        throws DeadlockException, InvalidTransactionException, InvalidIndexException, RemoteException {
+        if (ops.isEmpty()) {
+            return true;
+        }
+        List results = rm.execute(xid, ops);
+        List undo = new ArrayList();
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i) != null) {
+                Operation op = (Operation) ops.get(i);
+                undo.add(Operation.adjustAvail(op.getTablename(), op.getKey(), op.getAmount()));
+            }
+        }
+        if (!undo.isEmpty()) {
+            givebacks.put(rm, undo);
+        }
+        return !results.contains(null);
+    }
+
+    /**
+     * Returns the units an itinerary took before one of its legs failed, so
+     * that a false reserveItinerary leaves the transaction as it found it.
+     */
+    private void giveBack(int xid, Map givebacks)
+        throws DeadlockException, InvalidTransactionException, InvalidIndexException, RemoteException {
+        for (Iterator iter = givebacks.entrySet().iterator(); iter.hasNext();) {
+            Map.Entry entry = (Map.Entry) iter.next();
+            ((ResourceManager) entry.getKey()).execute(xid, (List) entry.getValue());
         }
-        return true;
     }
 
     // TECHNICAL/TESTING INTERFACE
@@ -799,21 +959,40 @@ public class WorkflowControllerImpl
         throw new TransactionAbortedException(xid, msg + ": " + e.getMessage());
     }
 
+    private void checkWritable(int xid) throws InvalidTransactionException {
+        if (snapshots.containsKey(new Integer(xid)) || readOnly.containsKey(new Integer(xid))) {
+            throw new InvalidTransactionException(xid, "Transaction is read-only.");
+        }
+    }
+
+    /** Reads a row in xid, from its snapshot if xid is a snapshot transaction. */
+    private ResourceItem read(ResourceManager rm, int xid, String tablename, Object key)
+        throws DeadlockException, InvalidTransactionException, RemoteException {
+        Long ts = (Long) snapshots.get(new Integer(xid));
+        if (ts != null) {
+            return rm.querySnapshot(ts.longValue(), tablename, key);
+        }
+        return rm.query(xid, tablename, key);
+    }
+
+    private Collection readIndex(ResourceManager rm, int xid, String tablename, String indexName, Object indexVal)
+        throws DeadlockException, InvalidTransactionException, InvalidIndexException, RemoteException {
+        Long ts = (Long) snapshots.get(new Integer(xid));
+        if (ts != null) {
+            return rm.querySnapshot(ts.longValue(), tablename, indexName, indexVal);
+        }
+        return rm.query(xid, tablename, indexName, indexVal);
+    }
+
     private boolean ensureCustomerExists(int xid, String custName) throws DeadlockException, InvalidTransactionException, RemoteException {
         Customer cust = (Customer) rmCustomers.query(xid, TABLE_CUSTOMERS, custName);
         return cust != null && !cust.isDeleted();
     }
 
     private boolean hasReservation(int xid, int resvType, String resvKey)
-        throws DeadlockException, InvalidTransactionException, RemoteException {
-        Collection reservations = rmCustomers.query(xid, TABLE_RESERVATIONS);
-        for (Iterator iter = reservations.iterator(); iter.hasNext();) {
-            Reservation resv = (Reservation) iter.next();
-            if (resv.getResvType() == resvType && resv.getResvKey().equals(resvKey)) {
-                return true;
-            }
-        }
-        return false;
+        throws DeadlockException, InvalidTransactionException, InvalidIndexException, RemoteException {
+        return rmCustomers.countReferences(xid, TABLE_RESERVATIONS, Reservation.INDEX_RESOURCE,
+                Reservation.resourceIndex(resvType, resvKey)) > 0;
     }
 
     private boolean setRMDietime(String who, String time) throws RemoteException {